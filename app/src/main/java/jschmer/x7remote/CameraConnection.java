@@ -0,0 +1,355 @@
+package jschmer.x7remote;
+
+import android.util.Log;
+
+import jschmer.x7remote.protocol.CameraCommand;
+import jschmer.x7remote.protocol.CameraNotification;
+import jschmer.x7remote.protocol.CommandEncoder;
+import jschmer.x7remote.protocol.ReplyFrameDecoder;
+import jschmer.x7remote.protocol.ReplyMatcher;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+interface CameraConnectionListener
+{
+    /**
+     * Called on the event loop thread, must not block.
+     */
+    void connectionLost(String reason);
+
+    /**
+     * Called on the event loop thread, must not block.
+     */
+    void notificationReceived(CameraNotification notification);
+}
+
+/**
+ * TCP control channel to the camera.
+ *
+ * Requests are written immediately and registered in a pending table, replies are read on
+ * the session's {@link CameraEventLoop} and matched against that table. This allows
+ * several requests to be in flight at the same time, callers wait on the returned
+ * {@link ReplyFuture} only when they actually need the reply.
+ *
+ * Replies are matched by {@link ReplyMatcher}, unsolicited messages are decoded and handed
+ * to the listener instead.
+ */
+class CameraConnection implements AutoCloseable, CameraEventLoop.Handler {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Network";
+    private static final long EXPIRE_INTERVAL_MS = 1000;
+
+    private final CameraEventLoop loop;
+    private final SocketChannel channel;
+    private volatile SelectionKey key = null;
+    private final ReplyFrameDecoder replyDecoder = new ReplyFrameDecoder();
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final LinkedList<ReplyFuture> pending = new LinkedList<>();
+    private final CameraConnectionListener listener;
+    private volatile boolean closed = false;
+
+    // requests not yet written to the socket, guarded by writeLock
+    private final Object writeLock = new Object();
+    private ByteBuffer outbound = ByteBuffer.allocate(4096);
+    private boolean writeInterest = false;
+
+    // connect handshake, completed on the loop
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private CameraEventLoop.Timeout connectTimeout = null;
+    private volatile IOException connectError = null;
+
+    CameraConnection(CameraEventLoop loop, String address, int port, int connectTimeoutMs, CameraConnectionListener listener) throws IOException {
+        this.loop = loop;
+        this.listener = listener;
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+
+        InetSocketAddress endpoint = new InetSocketAddress(address, port);
+        loop.execute(() -> {
+            try {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                connectTimeout = loop.schedule(
+                        () -> failConnect(new SocketTimeoutException("Connect timed out")),
+                        connectTimeoutMs
+                );
+                if (channel.connect(endpoint))
+                    finishConnect();
+            } catch (IOException e) {
+                failConnect(e);
+            }
+        });
+
+        try {
+            // the loop enforces the connect timeout, this only guards against a dead loop
+            if (!connected.await(connectTimeoutMs + 1000, TimeUnit.MILLISECONDS))
+                connectError = new SocketTimeoutException("Connect timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connectError = new IOException("Interrupted while connecting");
+        }
+
+        if (connectError != null) {
+            close();
+            throw connectError;
+        }
+
+        loop.schedule(this::expirePending, EXPIRE_INTERVAL_MS);
+    }
+
+    /**
+     * Sets the session token used for all following requests.
+     */
+    void setToken(int token) {
+        synchronized (writeLock) {
+            encoder.setToken(token);
+        }
+    }
+
+    /**
+     * Requests are sent immediately and registered in the pending table. The reply to a
+     * request that nobody waits for is still consumed from the stream when it arrives.
+     */
+    ReplyFuture request(CameraCommand command) throws SendMessageException {
+        synchronized (writeLock) {
+            return send(command.getId(), null, encoder.encodeCommand(command));
+        }
+    }
+
+    ReplyFuture requestGetSetting(String key) throws SendMessageException {
+        synchronized (writeLock) {
+            return send(CameraCommand.Get_Setting.getId(), key, encoder.encodeGetSetting(key));
+        }
+    }
+
+    ReplyFuture requestSetSetting(String key, String value) throws SendMessageException {
+        synchronized (writeLock) {
+            return send(CameraCommand.Set_Setting.getId(), key, encoder.encodeSetSetting(key, value));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        failPending("Connection closed");
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect())
+                finishConnect();
+            return;
+        }
+
+        if (key.isWritable()) {
+            synchronized (writeLock) {
+                flushOutbound();
+            }
+        }
+
+        if (key.isReadable()) {
+            int read;
+            while ((read = replyDecoder.readFrom(channel)) > 0) {
+                String replyStr;
+                while ((replyStr = replyDecoder.nextFrame()) != null) {
+                    if (BuildConfig.DEBUG)
+                        Log.d(LOGTAG, String.format("TCP RP: %s", replyStr));
+                    dispatch(replyStr);
+                }
+            }
+            if (read < 0)
+                throw new EOFException("Connection closed by camera");
+        }
+    }
+
+    @Override
+    public void onError(IOException e) {
+        if (connected.getCount() > 0) {
+            failConnect(e);
+            return;
+        }
+
+        if (!closed) {
+            Log.e(LOGTAG, e.toString());
+            close();
+            listener.connectionLost(e.getMessage());
+        }
+    }
+
+    private void finishConnect() {
+        connectTimeout.cancel();
+        key.interestOps(SelectionKey.OP_READ);
+        connected.countDown();
+    }
+
+    private void failConnect(IOException e) {
+        if (connected.getCount() == 0)
+            return;
+        connectError = e;
+        connected.countDown();
+    }
+
+    /**
+     * Callers hold the write lock, the request buffer is reused by the next request.
+     *
+     * @param msgId msg_id of the request, used to match the reply
+     * @param type  type of the request (setting key) or null
+     */
+    private ReplyFuture send(int msgId, String type, ByteBuffer request) throws SendMessageException {
+        if (closed)
+            throw new SendMessageException("Socket does not exist");
+
+        ReplyFuture future = new ReplyFuture(msgId, type);
+
+        // register before writing, the reply can arrive before write() returns
+        synchronized (pending) {
+            pending.add(future);
+        }
+
+        try {
+            if (BuildConfig.DEBUG)
+                Log.d(LOGTAG, String.format("TCP RQ: %s", new String(request.array(), 0, request.position(), StandardCharsets.UTF_8)));
+
+            request.flip();
+            if (outbound.remaining() < request.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(outbound.capacity() * 2, outbound.position() + request.remaining()));
+                outbound.flip();
+                grown.put(outbound);
+                outbound = grown;
+            }
+            outbound.put(request);
+
+            flushOutbound();
+        } catch (IOException e) {
+            synchronized (pending) {
+                pending.remove(future);
+            }
+            Log.e(LOGTAG, e.getMessage());
+            throw new SendMessageException(e.getMessage());
+        }
+        return future;
+    }
+
+    /**
+     * Writes as much of the outbound buffer as the socket takes without blocking and lets
+     * the loop write the rest once the socket is writable again. Callers hold the write lock.
+     */
+    private void flushOutbound() throws IOException {
+        outbound.flip();
+        channel.write(outbound);
+        outbound.compact();
+
+        boolean remaining = outbound.position() > 0;
+        if (remaining != writeInterest) {
+            writeInterest = remaining;
+            int ops = remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (loop.inLoop())
+                key.interestOps(ops);
+            else
+                loop.execute(() -> {
+                    if (key.isValid())
+                        key.interestOps(ops);
+                });
+        }
+    }
+
+    private void dispatch(String replyStr) {
+        JSONObject reply;
+        try {
+            reply = new JSONObject(replyStr);
+        } catch (JSONException e) {
+            Log.e(LOGTAG, String.format("Malformed reply '%s': %s", replyStr, e.getMessage()));
+            return;
+        }
+
+        if (CameraNotification.isNotification(reply)) {
+            listener.notificationReceived(CameraNotification.decode(reply));
+            return;
+        }
+
+        ReplyFuture future = takeMatching(reply);
+        if (future == null) {
+            Log.w(LOGTAG, String.format("No pending request for reply: %s", replyStr));
+            return;
+        }
+        future.complete(reply);
+    }
+
+    /**
+     * Takes the request the reply answers. Requests sent before it were skipped by the
+     * camera and are failed right away, otherwise a reply without msg_id could be matched
+     * to one of them.
+     */
+    private ReplyFuture takeMatching(JSONObject reply) {
+        ReplyMatcher matcher = new ReplyMatcher(reply);
+
+        synchronized (pending) {
+            int skipped = 0;
+            for (ReplyFuture candidate : pending) {
+                if (matcher.matches(candidate.msgId, candidate.type))
+                    break;
+                ++skipped;
+            }
+            if (skipped == pending.size())
+                return null;
+
+            for (int i = 0; i < skipped; ++i) {
+                ReplyFuture unanswered = pending.removeFirst();
+                Log.w(LOGTAG, String.format("No reply to %s", unanswered));
+                unanswered.fail("Camera didn't reply to: " + unanswered);
+            }
+            return pending.removeFirst();
+        }
+    }
+
+    /**
+     * Fails requests the camera didn't answer in time, otherwise their late replies would
+     * be matched to requests sent after them.
+     */
+    private void expirePending() {
+        if (closed)
+            return;
+
+        long now = CameraEventLoop.now();
+        synchronized (pending) {
+            for (Iterator<ReplyFuture> iterator = pending.iterator(); iterator.hasNext();) {
+                ReplyFuture future = iterator.next();
+                if (now - future.sentAt < ReplyFuture.DEFAULT_TIMEOUT_MS)
+                    continue;
+
+                Log.w(LOGTAG, String.format("No reply to %s", future));
+                future.fail("Timed out waiting for reply to: " + future);
+                iterator.remove();
+            }
+        }
+
+        loop.schedule(this::expirePending, EXPIRE_INTERVAL_MS);
+    }
+
+    private void failPending(String reason) {
+        synchronized (pending) {
+            for (ReplyFuture future : pending) {
+                future.fail(reason);
+            }
+            pending.clear();
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package jschmer.x7remote;
 
+import android.app.ActivityManager;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.NetworkInfo;
@@ -9,6 +12,7 @@ import android.preference.PreferenceManager;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.view.animation.Animation;
@@ -16,8 +20,17 @@ import android.view.animation.AnimationUtils;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
+import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import jschmer.x7remote.protocol.BatteryLevel;
+import jschmer.x7remote.protocol.CameraNotification;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Locale;
 
@@ -25,25 +38,224 @@ public class CameraControl extends AppCompatActivity {
     private static final String LOGTAG = CameraControl.class.getSimpleName();
 
     private X7RemoteSession x7session = null;
+    // keeps the session open while this activity is paused, null while not bound
+    private CameraSessionService sessionService = null;
+    // listener attached to x7session while resumed
+    private X7RemoteSessionListener sessionListener = null;
+    // guarded by this, a connect finishing after onPause() must not attach anymore
+    private boolean resumed = false;
+    // preview image currently shown, handed back to the session once replaced
+    private Bitmap previewBitmap = null;
+    // newest preview image not rendered yet, a render is posted while it holds one
+    private final LatestSlot<Bitmap> pendingPreview = new LatestSlot<>();
+
+    // replay of the preview history instead of the live preview, only used on the UI thread
+    private boolean replaying = false;
+    // history frames [replayFirstSeq, replayEndSeq) shown by the replay seek bar, its
+    // progress is the time in ms since the first one arrived
+    private long replayFirstSeq = 0;
+    private long replayEndSeq = 0;
+    private long replayStartMs = 0;
+    // frame to show once the current decode is done, only the latest scrub position matters
+    private long replayPendingSeq = -1;
+    private boolean replayDecoding = false;
+
+    // refreshes the preview metrics overlay while it is shown
+    private final Runnable metricsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            TextView overlay = findViewById(R.id.txt_previewMetrics);
+            if (overlay.getVisibility() != View.VISIBLE)
+                return;
+
+            X7RemoteSession session = x7session;
+            overlay.setText(session != null ? session.getPreviewMetrics().toString() : "");
+            overlay.postDelayed(this, 1000);
+        }
+    };
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            sessionService = ((CameraSessionService.LocalBinder) binder).getService();
+            connectToCam(sessionService);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            sessionService = null;
+        }
+    };
+    // size of the preview view, 0 until it was laid out
+    private volatile int previewWidth = 0;
+    private volatile int previewHeight = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera_control);
+
+        findViewById(R.id.camPreview).addOnLayoutChangeListener(
+                (view, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+                    if (right - left == previewWidth && bottom - top == previewHeight)
+                        return;
+                    previewWidth = right - left;
+                    previewHeight = bottom - top;
+                    applyPreviewTargetSize(x7session);
+                }
+        );
+
+        // tap the preview to scrub through the last seconds
+        findViewById(R.id.camPreview).setOnClickListener(view -> toggleReplay());
+        SeekBar replaySeek = findViewById(R.id.seek_replay);
+        replaySeek.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                X7RemoteSession session = x7session;
+                PreviewRingBuffer history = session != null ? session.getPreviewHistory() : null;
+                if (!replaying || history == null)
+                    return;
+
+                long seq = history.seqAt(replayStartMs + progress, replayFirstSeq, replayEndSeq);
+                if (seq < 0)
+                    return;
+                replayPendingSeq = seq;
+                if (!replayDecoding)
+                    decodeReplayFrame(session);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
+        // long press the preview to toggle the metrics overlay
+        findViewById(R.id.camPreview).setOnLongClickListener(view -> {
+            TextView overlay = findViewById(R.id.txt_previewMetrics);
+            boolean show = overlay.getVisibility() != View.VISIBLE;
+            overlay.setVisibility(show ? View.VISIBLE : View.GONE);
+            if (show)
+                overlay.post(metricsUpdater);
+            return true;
+        });
+    }
+
+    private void toggleReplay() {
+        X7RemoteSession session = x7session;
+        PreviewRingBuffer history = session != null ? session.getPreviewHistory() : null;
+        if (!replaying && (history == null || history.getFirstSeq() == history.getNextSeq()))
+            return;
+
+        replaying = !replaying;
+        findViewById(R.id.layout_replay).setVisibility(replaying ? View.VISIBLE : View.GONE);
+        if (!replaying)
+            return;
+
+        // freeze the range, newer frames are recorded but not shown until replay ends
+        replayFirstSeq = history.getFirstSeq();
+        replayEndSeq = history.getNextSeq();
+        replayStartMs = history.getTimestamp(replayFirstSeq);
+        long endMs = history.getTimestamp(replayEndSeq - 1);
+        SeekBar replaySeek = findViewById(R.id.seek_replay);
+        replaySeek.setMax((int) Math.max(0, endMs - replayStartMs));
+        replaySeek.setProgress(replaySeek.getMax());
+    }
+
+    /**
+     * Decodes the pending replay frame off the UI thread, scrubbing meanwhile only updates
+     * which frame is decoded next.
+     */
+    private void decodeReplayFrame(X7RemoteSession session) {
+        long seq = replayPendingSeq;
+        replayPendingSeq = -1;
+        replayDecoding = true;
+
+        AsyncTask.execute(() -> {
+            Bitmap frame = session.decodePreviewHistoryFrame(seq);
+            runOnUiThread(() -> {
+                replayDecoding = false;
+                if (frame != null) {
+                    if (replaying && session == x7session)
+                        showPreviewImage(session, frame);
+                    else
+                        session.releasePreviewImage(frame);
+                }
+                if (replaying && replayPendingSeq >= 0 && session == x7session)
+                    decodeReplayFrame(session);
+            });
+        });
+    }
+
+    private void showPreviewImage(X7RemoteSession session, Bitmap bmp) {
+        ImageView imageView = findViewById(R.id.camPreview);
+        imageView.setImageBitmap(bmp);
+
+        // the previous image isn't drawn anymore, decode into it again
+        if (previewBitmap != null)
+            session.releasePreviewImage(previewBitmap);
+        previewBitmap = bmp;
+    }
+
+    private void applyPreviewTargetSize(X7RemoteSession session) {
+        if (session == null || previewWidth == 0 || previewHeight == 0)
+            return;
+
+        // low-end phones get the cheaper pixel format as well
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        boolean lowColor = activityManager != null && activityManager.isLowRamDevice();
+        session.setPreviewTargetSize(previewWidth, previewHeight, lowColor);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
-        connectToCam();
+        synchronized (this) {
+            resumed = true;
+        }
+
+        // started as well as bound, so the session outlives this activity, e.g. a rotation
+        Intent service = new Intent(this, CameraSessionService.class);
+        startService(service);
+        bindService(service, serviceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        disconnectFromCam();
+        detachFromCam();
+        unbindService(serviceConnection);
+        sessionService = null;
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+
+        // e.g. covered by the notification shade or a dialog
+        X7RemoteSession session = x7session;
+        if (session != null)
+            session.setPreviewVisible(hasFocus);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        X7RemoteSession session = x7session;
+        if (session != null)
+            session.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
     }
 
     private void returnToMainActivity() {
@@ -133,13 +345,17 @@ public class CameraControl extends AppCompatActivity {
         );
     }
 
-    private void connectToCam() {
+    private void connectToCam(CameraSessionService service) {
         runOnUiThread(
             () -> {
                 // show loader
                 findViewById(R.id.loaderPreview).setVisibility(View.VISIBLE);
                 findViewById(R.id.loaderActions).setVisibility(View.VISIBLE);
 
+                // a new session has its own history
+                replaying = false;
+                findViewById(R.id.layout_replay).setVisibility(View.GONE);
+
                 // hide camera controls
                 findViewById(R.id.layout_actions).setVisibility(View.INVISIBLE);
                 findViewById(R.id.layout_recording).setVisibility(View.INVISIBLE);
@@ -149,8 +365,10 @@ public class CameraControl extends AppCompatActivity {
 
         AsyncTask.execute(() -> {
             Log.i(LOGTAG, "Connecting to camera...");
+            X7RemoteSession session;
             try {
-                x7session = new X7RemoteSession(
+                // instant if the service still has the session open
+                session = service.openSession(
                         PreferenceManager.getDefaultSharedPreferences(this),
                         getResources()
                 );
@@ -160,7 +378,16 @@ public class CameraControl extends AppCompatActivity {
                 return;
             }
 
-            if (!x7session.isPreviewSupported()) {
+            synchronized (this) {
+                if (!resumed)
+                    return;
+                x7session = session;
+                sessionListener = createSessionListener(session);
+                session.addListener(sessionListener);
+                session.setPreviewVisible(true);
+            }
+
+            if (!session.isPreviewSupported()) {
                 runOnUiThread(
                         () -> {
                             ProgressBar spinner = findViewById(R.id.loaderPreview);
@@ -171,71 +398,18 @@ public class CameraControl extends AppCompatActivity {
                 );
             }
 
-            updateButtonUI(x7session.isRecording());
-
-            x7session.addListener(new X7RemoteSessionListener() {
-                @Override
-                public void stateChanged(NetworkInfo.State newstate, String reason) {
-                    if (reason.length() > 0)
-                        handleRuntimeError(reason);
-                }
-
-                @Override
-                public void recordingStatusChanged(boolean recording) {
-                    updateButtonUI(recording);
-                }
-
-                @Override
-                public void generalInfoChanged(BatteryLevel level, int sdCardCapacity) {
-                    runOnUiThread(() -> {
-                        // set battery level image
-                        ImageView batteryImg = findViewById(R.id.img_battery);
-                        batteryImg.clearAnimation();
-                        int imageId = R.drawable.ic_battery_4_black_24dp;
-                        switch (level) {
-                            case L0:
-                            case L1:
-                                imageId = R.drawable.ic_battery_0_black_24dp;
-                                Animation blinkingAnimation = AnimationUtils.loadAnimation(getApplicationContext(), R.anim.blinking);
-                                batteryImg.startAnimation(blinkingAnimation);
-                                break;
-                            case L2:
-                                imageId = R.drawable.ic_battery_2_black_24dp;
-                                break;
-                            case L3:
-                                imageId = R.drawable.ic_battery_3_black_24dp;
-                                break;
-                            case L4:
-                                imageId = R.drawable.ic_battery_4_black_24dp;
-                                break;
-                            case AC:
-                                imageId = R.drawable.ic_battery_charging_black_24dp;
-                                break;
-                        }
-                        batteryImg.setImageResource(imageId);
-
-                        // update sd card capactity
-                        TextView sdCardCapacityText = findViewById(R.id.txt_sdCardCapactiy);
-                        sdCardCapacityText.setText(String.format(Locale.US, "%d %%", sdCardCapacity));
-
-                        // and show the data
-                        findViewById(R.id.layout_camInfo).setVisibility(View.VISIBLE);
-                    });
-                }
+            updateButtonUI(session.isRecording());
+            if (session.isCamStatusKnown())
+                showCamStatus(session.getBatteryLevel(), session.getSdCardCapacity());
 
-                @Override
-                public void newCamPreviewImageAvailable(Bitmap bmp) {
-                    runOnUiThread(
-                            () -> {
-                                findViewById(R.id.loaderPreview).setVisibility(View.GONE);
-                                findViewById(R.id.txt_previewNotAvailable).setVisibility(View.GONE);
+            HandshakeTimings timings = session.getHandshakeTimings();
+            Log.i(LOGTAG, String.format("Connected: %s", timings));
+            if (BuildConfig.DEBUG) {
+                String message = getString(R.string.handshake_timings, timings.toString());
+                runOnUiThread(() -> Toast.makeText(CameraControl.this, message, Toast.LENGTH_LONG).show());
+            }
 
-                                ImageView imageView = findViewById(R.id.camPreview);
-                                imageView.setImageBitmap(bmp);
-                            }
-                    );
-                }
-            });
+            applyPreviewTargetSize(session);
 
             Log.i(LOGTAG, "Connecting to camera... DONE!");
 
@@ -285,6 +459,121 @@ public class CameraControl extends AppCompatActivity {
         });
     }
 
+    private X7RemoteSessionListener createSessionListener(X7RemoteSession session) {
+        return new X7RemoteSessionListener() {
+            @Override
+            public void stateChanged(NetworkInfo.State newstate, String reason) {
+                if (reason.length() > 0)
+                    handleRuntimeError(reason);
+            }
+
+            @Override
+            public void recordingStatusChanged(boolean recording) {
+                updateButtonUI(recording);
+            }
+
+            @Override
+            public void generalInfoChanged(BatteryLevel level, int sdCardCapacity) {
+                showCamStatus(level, sdCardCapacity);
+            }
+
+            @Override
+            public void notificationReceived(CameraNotification notification) {
+                // recording and battery changes are already reported through the
+                // dedicated callbacks, only tell the user about things that need attention
+                if (notification.type == CameraNotification.Type.SdCardFull) {
+                    runOnUiThread(() -> Toast.makeText(CameraControl.this, R.string.sd_card_full, Toast.LENGTH_LONG).show());
+                }
+            }
+
+            @Override
+            public void connectionInterrupted(String reason) {
+                // keep the preview and status in place, only the actions can't be used meanwhile
+                runOnUiThread(() -> {
+                    findViewById(R.id.layout_actions).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.loaderActions).setVisibility(View.VISIBLE);
+                    Toast.makeText(CameraControl.this, R.string.connection_interrupted, Toast.LENGTH_SHORT).show();
+                });
+            }
+
+            @Override
+            public void connectionResumed(int attempts) {
+                updateButtonUI(session.isRecording());
+                runOnUiThread(() -> {
+                    findViewById(R.id.loaderActions).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.layout_actions).setVisibility(View.VISIBLE);
+                    Toast.makeText(CameraControl.this, R.string.connection_resumed, Toast.LENGTH_SHORT).show();
+                });
+            }
+
+            @Override
+            public void newCamPreviewImageAvailable(Bitmap bmp) {
+                // if a render is still pending it picks up this image instead, so a
+                // stalled UI thread never works through a backlog of old images
+                Bitmap skipped = pendingPreview.put(bmp);
+                if (skipped != null) {
+                    session.previewImageSkipped(skipped);
+                    return;
+                }
+
+                runOnUiThread(
+                        () -> {
+                            Bitmap newest = pendingPreview.poll();
+                            if (newest == null)
+                                return;
+                            if (replaying) {
+                                session.releasePreviewImage(newest);
+                                return;
+                            }
+
+                            findViewById(R.id.loaderPreview).setVisibility(View.GONE);
+                            findViewById(R.id.txt_previewNotAvailable).setVisibility(View.GONE);
+
+                            showPreviewImage(session, newest);
+                            session.previewImageRendered(newest);
+                        }
+                );
+            }
+        };
+    }
+
+    private void showCamStatus(BatteryLevel level, int sdCardCapacity) {
+        runOnUiThread(() -> {
+            // set battery level image
+            ImageView batteryImg = findViewById(R.id.img_battery);
+            batteryImg.clearAnimation();
+            int imageId = R.drawable.ic_battery_4_black_24dp;
+            switch (level) {
+                case L0:
+                case L1:
+                    imageId = R.drawable.ic_battery_0_black_24dp;
+                    Animation blinkingAnimation = AnimationUtils.loadAnimation(getApplicationContext(), R.anim.blinking);
+                    batteryImg.startAnimation(blinkingAnimation);
+                    break;
+                case L2:
+                    imageId = R.drawable.ic_battery_2_black_24dp;
+                    break;
+                case L3:
+                    imageId = R.drawable.ic_battery_3_black_24dp;
+                    break;
+                case L4:
+                    imageId = R.drawable.ic_battery_4_black_24dp;
+                    break;
+                case AC:
+                    imageId = R.drawable.ic_battery_charging_black_24dp;
+                    break;
+            }
+            batteryImg.setImageResource(imageId);
+
+            // update sd card capactity
+            TextView sdCardCapacityText = findViewById(R.id.txt_sdCardCapactiy);
+            sdCardCapacityText.setText(String.format(Locale.US, "%d %%", sdCardCapacity));
+
+            // and show the data
+            findViewById(R.id.layout_camInfo).setVisibility(View.VISIBLE);
+        });
+    }
+
     private String getConfigValueFromTitleValueSetting(int settingKey, int titlesKey, int valuesKey) {
         String keyStr = getResources().getString(settingKey);
         String[] titles = getResources().getStringArray(titlesKey);
@@ -295,16 +584,24 @@ public class CameraControl extends AppCompatActivity {
         return titles[index];
     }
 
-    private void disconnectFromCam() {
-        AsyncTask.execute(() -> {
-            Log.i(LOGTAG, "Disconnect from camera...");
-            try {
-                if (x7session != null)
-                    x7session.close();
-            } catch (Exception ignored) {
-            }
-            Log.i(LOGTAG, "Disconnect from camera... DONE");
-        });
+    /**
+     * Stops listening to the session, the service keeps it open for the next activity.
+     */
+    private synchronized void detachFromCam() {
+        resumed = false;
+
+        X7RemoteSession session = x7session;
+        if (session == null || sessionListener == null)
+            return;
+
+        session.removeMyEventListener(sessionListener);
+        sessionListener = null;
+        session.setPreviewVisible(false);
+
+        Bitmap pending = pendingPreview.poll();
+        if (pending != null)
+            session.previewImageSkipped(pending);
+        Log.i(LOGTAG, "Detached from camera");
     }
 
     public void onVideoCapture(View view) {
@@ -330,19 +627,45 @@ public class CameraControl extends AppCompatActivity {
         });
     }
 
+    public void onExportReplay(View view) {
+        X7RemoteSession session = x7session;
+        if (session == null)
+            return;
+
+        long fromSeq = replayFirstSeq;
+        long toSeq = replayEndSeq;
+        AsyncTask.execute(() -> {
+            File dir = getExternalFilesDir(null);
+            File file = new File(dir != null ? dir : getFilesDir(), String.format(Locale.US, "preview-%d.mjpeg", System.currentTimeMillis()));
+            String message;
+            try (OutputStream out = new FileOutputStream(file)) {
+                int frames = session.exportPreviewHistory(out, fromSeq, toSeq);
+                message = getString(R.string.replay_saved, frames, file.getAbsolutePath());
+            } catch (IOException e) {
+                Log.e(LOGTAG, String.format("Export failed: %s", e));
+                message = getString(R.string.replay_save_failed, e.getMessage());
+            }
+
+            String toast = message;
+            runOnUiThread(() -> Toast.makeText(CameraControl.this, toast, Toast.LENGTH_LONG).show());
+        });
+    }
+
     public void onSettings(View view) {
         Intent intent = new Intent(this, SettingsActivity.class);
         startActivity(intent);
     }
 
     public void onPowerOff(View view) {
+        CameraSessionService service = sessionService;
         AsyncTask.execute(() -> {
             try {
                 x7session.powerOff();
             } catch (SendMessageException e) {
                 e.printStackTrace();
             }
-            disconnectFromCam();
+            if (service != null)
+                service.closeSession();
             returnToMainActivity();
         });
     }
@@ -0,0 +1,199 @@
+package jschmer.x7remote;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single I/O thread of a session.
+ *
+ * Multiplexes all non-blocking camera channels (TCP control channel and HTTP fetches) on
+ * one {@link Selector} and runs tasks and timeouts on the same thread, so channel state
+ * never needs locking against the loop itself. Handlers run on the loop thread and must
+ * not block.
+ */
+class CameraEventLoop implements AutoCloseable {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Network";
+
+    interface Handler {
+        /**
+         * Called when the channel is ready for any of its interest operations.
+         */
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * Called when onReady threw, the handler is expected to close its channel.
+         */
+        void onError(IOException e);
+    }
+
+    static class Timeout implements Comparable<Timeout> {
+        private final long deadline;
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // only accessed on the loop thread
+    private final PriorityQueue<Timeout> timeouts = new PriorityQueue<>();
+    private volatile boolean running = true;
+
+    CameraEventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "X7RemoteSession-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread after the delay, unless cancelled before.
+     */
+    Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(now() + delayMs, task);
+        if (inLoop())
+            timeouts.add(timeout);
+        else
+            execute(() -> timeouts.add(timeout));
+        return timeout;
+    }
+
+    /**
+     * Must be called on the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+
+        if (!inLoop()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                runTasks();
+                long waitMs = runTimeouts();
+
+                if (!tasks.isEmpty())
+                    selector.selectNow();
+                else
+                    selector.select(waitMs);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid())
+                            handler.onReady(key);
+                    } catch (IOException e) {
+                        handler.onError(e);
+                    } catch (RuntimeException e) {
+                        Log.e(LOGTAG, "Channel handler failed", e);
+                        handler.onError(new IOException(e.toString()));
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, String.format("Event loop failed: %s", e));
+        }
+
+        // fail whatever is still registered and release the selector
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((Handler) key.attachment()).onError(new ClosedChannelException());
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    /**
+     * @return milliseconds until the next timeout is due, 0 if there is none
+     */
+    private long runTimeouts() {
+        long now = now();
+        Timeout next;
+        while ((next = timeouts.peek()) != null) {
+            if (next.cancelled) {
+                timeouts.poll();
+                continue;
+            }
+            if (next.deadline > now)
+                return next.deadline - now;
+
+            timeouts.poll();
+            runSafely(next.task);
+        }
+        return 0;
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "Event loop task failed", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package jschmer.x7remote;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Finds out when the camera accepts connections again, e.g. right after Wi-Fi came up or
+ * while it still tears down the previous session.
+ *
+ * The TCP port is tried until it accepts a connection, with exponentially growing pauses in
+ * between. The pauses are jittered so several probes don't hit the camera in lockstep. A
+ * refused connection fails right away, so a camera that becomes ready is noticed within one
+ * short pause.
+ */
+class CameraReadinessProbe {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Probe";
+    private static final int ATTEMPT_TIMEOUT_MS = 2000;
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 500;
+
+    private final String address;
+    private final int port;
+
+    CameraReadinessProbe(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Tries at least once, further attempts only start before the deadline.
+     *
+     * @param timeoutMs overall deadline, 0 for a single attempt
+     * @return whether the camera accepted a connection
+     */
+    boolean awaitReady(long timeoutMs) throws InterruptedException {
+        long start = CameraEventLoop.now();
+        long deadline = start + timeoutMs;
+        long backoff = INITIAL_BACKOFF_MS;
+        int attempts = 0;
+
+        int attemptTimeout = ATTEMPT_TIMEOUT_MS;
+        while (true) {
+            ++attempts;
+            if (isReachable(attemptTimeout)) {
+                Log.i(LOGTAG, String.format("Camera ready after %d ms, %d attempts", CameraEventLoop.now() - start, attempts));
+                return true;
+            }
+
+            long remaining = deadline - CameraEventLoop.now();
+            if (remaining <= 0) {
+                Log.i(LOGTAG, String.format("Camera not ready after %d ms, %d attempts", CameraEventLoop.now() - start, attempts));
+                return false;
+            }
+
+            // somewhere between half and all of the backoff, the last attempt is at the deadline
+            long pause = backoff / 2 + (long) (Math.random() * backoff / 2);
+            Thread.sleep(Math.min(pause, remaining));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            attemptTimeout = (int) Math.max(1, Math.min(ATTEMPT_TIMEOUT_MS, deadline - CameraEventLoop.now()));
+        }
+    }
+
+    private boolean isReachable(int timeoutMs) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package jschmer.x7remote;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.net.NetworkInfo;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import jschmer.x7remote.protocol.BatteryLevel;
+import jschmer.x7remote.protocol.CameraNotification;
+
+/**
+ * Owns the camera session so it survives activities coming and going.
+ *
+ * Activities bind to the service and attach their listeners to the session it hands out,
+ * a rotation or a trip to the settings doesn't reconnect anymore. The session is closed once
+ * no activity was bound for {@link #IDLE_TIMEOUT_MS}. While a session is open the service
+ * runs in the foreground, so it isn't killed as long as the camera stays connected.
+ */
+public class CameraSessionService extends Service {
+    private static final String LOGTAG = CameraSessionService.class.getSimpleName();
+    private static final String CHANNEL_ID = "camera_session";
+    private static final int NOTIFICATION_ID = 1;
+    // how long the session stays open without an activity bound
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    class LocalBinder extends Binder {
+        CameraSessionService getService() {
+            return CameraSessionService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleTimeout = this::closeIdleSession;
+
+    // held while a session is opened or closed, so the handshake never runs twice
+    private final Object openLock = new Object();
+    // written under this, read without a lock so the main thread never waits for a handshake
+    private volatile X7RemoteSession session = null;
+
+    // drops the session once it died on its own, e.g. lost the connection
+    private final X7RemoteSessionListener sessionListener = new X7RemoteSessionListener() {
+        @Override
+        public void stateChanged(NetworkInfo.State newstate, String reason) {
+            if (newstate == NetworkInfo.State.DISCONNECTED)
+                sessionClosed();
+        }
+
+        @Override
+        public void recordingStatusChanged(boolean recording) {
+        }
+
+        @Override
+        public void generalInfoChanged(BatteryLevel level, int sdCardCapacity) {
+        }
+
+        @Override
+        public void newCamPreviewImageAvailable(Bitmap bmp) {
+        }
+
+        @Override
+        public void notificationReceived(CameraNotification notification) {
+        }
+
+        @Override
+        public void connectionInterrupted(String reason) {
+        }
+
+        @Override
+        public void connectionResumed(int attempts) {
+        }
+    };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // started only to outlive the activities, there is nothing to restore after a kill
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        handler.removeCallbacks(idleTimeout);
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        handler.removeCallbacks(idleTimeout);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        Log.i(LOGTAG, String.format("No activity bound, closing the session in %d s", IDLE_TIMEOUT_MS / 1000));
+        handler.postDelayed(idleTimeout, IDLE_TIMEOUT_MS);
+        // get onRebind() for the next activity
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        handler.removeCallbacks(idleTimeout);
+        AsyncTask.execute(this::closeSession);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        X7RemoteSession current = getSession();
+        if (current != null)
+            current.trimMemory(level);
+    }
+
+    /**
+     * Returns the open session or connects a new one, blocks while connecting. Settings
+     * changed while the session stayed open are pushed to the camera first.
+     */
+    X7RemoteSession openSession(SharedPreferences sharedPrefs, Resources res) throws ConnectionException, AssertionException {
+        synchronized (openLock) {
+            X7RemoteSession current = session;
+            if (current != null && !current.isClosed()) {
+                Log.i(LOGTAG, "Reusing open session");
+                current.applyPendingSettings(sharedPrefs, res);
+                return current;
+            }
+
+            X7RemoteSession opened = new X7RemoteSession(sharedPrefs, res);
+            opened.addListener(sessionListener);
+            ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+            opened.setLowRamDevice(activityManager != null && activityManager.isLowRamDevice());
+            // not decoded until an activity shows it, e.g. when connected ahead of time
+            opened.setPreviewVisible(false);
+            synchronized (this) {
+                session = opened;
+            }
+            startForeground(NOTIFICATION_ID, buildNotification());
+            return opened;
+        }
+    }
+
+    /**
+     * @return the open session or null, doesn't wait for a session being opened
+     */
+    X7RemoteSession getSession() {
+        X7RemoteSession current = session;
+        return current != null && !current.isClosed() ? current : null;
+    }
+
+    /**
+     * Closes the session for good, blocks until it is closed. A session being opened is
+     * closed once it is connected.
+     */
+    void closeSession() {
+        synchronized (openLock) {
+            X7RemoteSession closing;
+            synchronized (this) {
+                closing = session;
+                session = null;
+            }
+            if (closing == null)
+                return;
+
+            closing.removeMyEventListener(sessionListener);
+            closing.close();
+            stopForeground(true);
+        }
+    }
+
+    private void sessionClosed() {
+        synchronized (this) {
+            if (session == null || !session.isClosed())
+                return;
+            session = null;
+        }
+        Log.i(LOGTAG, "Session closed");
+        stopForeground(true);
+    }
+
+    private void closeIdleSession() {
+        Log.i(LOGTAG, "Closing idle session");
+        AsyncTask.execute(() -> {
+            closeSession();
+            stopSelf();
+        });
+    }
+
+    private Notification buildNotification() {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && notificationManager != null) {
+            NotificationChannel channel = new NotificationChannel(
+                    CHANNEL_ID, getString(R.string.session_channel), NotificationManager.IMPORTANCE_LOW
+            );
+            notificationManager.createNotificationChannel(channel);
+        }
+
+        Intent intent = new Intent(this, CameraControl.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, 0);
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_recording)
+                .setContentTitle(getString(R.string.session_notification_title))
+                .setContentText(getString(R.string.session_notification_text))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
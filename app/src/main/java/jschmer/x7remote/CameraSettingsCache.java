@@ -0,0 +1,57 @@
+package jschmer.x7remote;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known camera setting values of a session (camera key -> camera value).
+ *
+ * Filled when connecting and kept up to date from set replies and camera notifications, so
+ * changing settings doesn't need to read the current value from the camera first. The
+ * version is incremented on every change.
+ */
+class CameraSettingsCache {
+    private final Map<String, String> values = new HashMap<>();
+    private long version = 0;
+
+    synchronized boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    synchronized String get(String key) {
+        return values.get(key);
+    }
+
+    synchronized void put(String key, String value) {
+        String previous = values.put(key, value);
+        if (!value.equals(previous))
+            ++version;
+    }
+
+    synchronized void putAll(Map<String, String> newValues) {
+        for (Map.Entry<String, String> entry : newValues.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets the value of a setting that was changed outside of this session.
+     */
+    synchronized void invalidate(String key) {
+        if (values.remove(key) != null)
+            ++version;
+    }
+
+    synchronized void clear() {
+        values.clear();
+        ++version;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized Map<String, String> snapshot() {
+        return new HashMap<>(values);
+    }
+}
@@ -0,0 +1,84 @@
+package jschmer.x7remote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Start and duration of the connection handshake phases, relative to the start of the
+ * handshake. Phases after Session_Init run concurrently, so their spans overlap.
+ */
+class HandshakeTimings {
+    enum Phase {
+        Connect,
+        SessionInit,
+        Pair,
+        Config,
+        Settings,
+        Preview
+    }
+
+    static class Span {
+        final Phase phase;
+        final long startMs;
+        final long durationMs;
+
+        private Span(Phase phase, long startMs, long durationMs) {
+            this.phase = phase;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+    }
+
+    private final long origin = CameraEventLoop.now();
+    // phase -> {start, end}, end is -1 while the phase is running
+    private final Map<Phase, long[]> phases = new EnumMap<>(Phase.class);
+    private long totalMs = -1;
+
+    synchronized void begin(Phase phase) {
+        phases.put(phase, new long[]{CameraEventLoop.now() - origin, -1});
+    }
+
+    synchronized void end(Phase phase) {
+        long[] span = phases.get(phase);
+        if (span != null && span[1] < 0)
+            span[1] = CameraEventLoop.now() - origin;
+    }
+
+    synchronized void finish() {
+        totalMs = CameraEventLoop.now() - origin;
+    }
+
+    /**
+     * @return duration of the whole handshake or -1 if it didn't finish
+     */
+    synchronized long getTotalMs() {
+        return totalMs;
+    }
+
+    /**
+     * @return finished phases ordered by their start
+     */
+    synchronized List<Span> getSpans() {
+        List<Span> spans = new ArrayList<>();
+        for (Map.Entry<Phase, long[]> entry : phases.entrySet()) {
+            long[] span = entry.getValue();
+            if (span[1] >= 0)
+                spans.add(new Span(entry.getKey(), span[0], span[1] - span[0]));
+        }
+        Collections.sort(spans, (a, b) -> Long.compare(a.startMs, b.startMs));
+        return spans;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder(String.format(Locale.US, "total %d ms", getTotalMs()));
+        for (Span span : getSpans()) {
+            str.append(String.format(Locale.US, ", %s %d ms (at %d ms)", span.phase, span.durationMs, span.startMs));
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,218 @@
+package jschmer.x7remote;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single non-blocking HTTP GET executed on a {@link CameraEventLoop}.
+ *
+ * The timeout is driven by the loop and restarts whenever data arrives, like the connect
+ * and read timeouts of a blocking connection. A 404 is reported as
+ * {@link FileNotFoundException} and a timeout as {@link SocketTimeoutException}.
+ */
+class HttpRequest implements CameraEventLoop.Handler {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private final CameraEventLoop loop;
+    private final InetSocketAddress endpoint;
+    private final String path;
+    private final int timeoutMs;
+
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private ByteBuffer request;
+    private ByteBuffer response = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private int headerLength = -1;
+    private int contentLength = -1;
+    private boolean chunked = false;
+    private int status = 0;
+    private long lastProgress;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile byte[] body = null;
+    private volatile IOException error = null;
+
+    private HttpRequest(CameraEventLoop loop, String host, int port, String path, int timeoutMs) {
+        this.loop = loop;
+        this.endpoint = new InetSocketAddress(host, port);
+        this.path = path;
+        this.timeoutMs = timeoutMs;
+
+        String requestStr = String.format(
+                Locale.US,
+                "GET %s HTTP/1.1\r\nHost: %s\r\nConnection: close\r\n\r\n",
+                path,
+                host
+        );
+        request = ByteBuffer.wrap(requestStr.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Fetches the resource and blocks the calling thread until it was received.
+     */
+    static byte[] get(CameraEventLoop loop, String host, int port, String path, int timeoutMs) throws IOException {
+        if (!loop.isRunning())
+            throw new IOException("Event loop closed");
+
+        HttpRequest httpRequest = new HttpRequest(loop, host, port, path, timeoutMs);
+        loop.execute(httpRequest::start);
+        return httpRequest.await();
+    }
+
+    private byte[] await() throws IOException {
+        try {
+            // the loop enforces the timeout, this only guards against a dead loop
+            if (!done.await(timeoutMs * 2 + 1000, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException(String.format("GET %s timed out", path));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted during GET %s", path));
+        }
+
+        if (error != null)
+            throw error;
+        return body;
+    }
+
+    private void start() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+            lastProgress = CameraEventLoop.now();
+            loop.schedule(this::checkTimeout, timeoutMs);
+
+            if (channel.connect(endpoint))
+                key.interestOps(SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            finish(e);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                lastProgress = CameraEventLoop.now();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        if (key.isWritable()) {
+            channel.write(request);
+            if (!request.hasRemaining())
+                key.interestOps(SelectionKey.OP_READ);
+            lastProgress = CameraEventLoop.now();
+            return;
+        }
+
+        if (key.isReadable()) {
+            int read;
+            do {
+                if (!response.hasRemaining())
+                    grow(response.capacity() * 2);
+
+                read = channel.read(response);
+                if (read > 0)
+                    lastProgress = CameraEventLoop.now();
+
+                if (headerLength < 0)
+                    parseHeader();
+
+                if (headerLength >= 0 && contentLength >= 0 && response.position() >= headerLength + contentLength) {
+                    finish(null);
+                    return;
+                }
+            } while (read > 0);
+
+            if (read < 0) {
+                if (headerLength < 0 || contentLength >= 0)
+                    throw new EOFException(String.format("GET %s: connection closed early", path));
+                // no content length, the body ends with the connection
+                finish(null);
+            }
+        }
+    }
+
+    @Override
+    public void onError(IOException e) {
+        finish(e);
+    }
+
+    private void checkTimeout() {
+        if (done.getCount() == 0)
+            return;
+
+        long idle = CameraEventLoop.now() - lastProgress;
+        if (idle >= timeoutMs)
+            finish(new SocketTimeoutException(String.format("GET %s timed out", path)));
+        else
+            loop.schedule(this::checkTimeout, timeoutMs - idle);
+    }
+
+    private void parseHeader() throws IOException {
+        HttpResponseHeader header = HttpResponseHeader.parse(response.array(), 0, response.position(), path);
+        if (header == null)
+            return;
+
+        headerLength = header.length;
+        status = header.status;
+        contentLength = header.contentLength;
+        // read chunked bodies until the connection is closed and decode them afterwards
+        chunked = header.chunked;
+
+        if (contentLength >= 0 && headerLength + contentLength > response.capacity())
+            grow(headerLength + contentLength);
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        response.flip();
+        grown.put(response);
+        response = grown;
+    }
+
+    private void finish(IOException e) {
+        if (done.getCount() == 0)
+            return;
+
+        if (e == null) {
+            if (status == 404) {
+                e = new FileNotFoundException(path);
+            } else if (status != 200) {
+                e = new IOException(String.format(Locale.US, "GET %s: HTTP %d", path, status));
+            } else {
+                int length = contentLength >= 0 ? contentLength : response.position() - headerLength;
+                try {
+                    if (chunked) {
+                        body = HttpResponseHeader.decodeChunked(response.array(), headerLength, headerLength + length, path);
+                    } else {
+                        body = new byte[length];
+                        System.arraycopy(response.array(), headerLength, body, 0, length);
+                    }
+                } catch (IOException chunkError) {
+                    e = chunkError;
+                }
+            }
+        }
+
+        error = e;
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {
+        }
+        done.countDown();
+    }
+}
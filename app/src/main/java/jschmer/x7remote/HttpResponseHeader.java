@@ -0,0 +1,157 @@
+package jschmer.x7remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Status line and the headers of an HTTP response that decide how its body is read.
+ */
+class HttpResponseHeader {
+    final int status;
+    // size of the status line and headers including the empty line
+    final int length;
+    // -1 if the response has no Content-Length
+    final int contentLength;
+    final boolean chunked;
+    // the server closes the connection after this response
+    final boolean connectionClose;
+    // including parameters like the multipart boundary, empty if the response has none
+    final String contentType;
+
+    private HttpResponseHeader(int status, int length, int contentLength, boolean chunked, boolean connectionClose, String contentType) {
+        this.status = status;
+        this.length = length;
+        this.contentLength = contentLength;
+        this.chunked = chunked;
+        this.connectionClose = connectionClose;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the header starting at data[from] or null if data[from, to) doesn't hold the
+     * complete header yet
+     */
+    static HttpResponseHeader parse(byte[] data, int from, int to, String path) throws IOException {
+        int end = -1;
+        for (int i = from + 3; i < to; ++i) {
+            if (data[i - 3] == '\r' && data[i - 2] == '\n' && data[i - 1] == '\r' && data[i] == '\n') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end < 0)
+            return null;
+
+        String[] lines = new String(data, from, end - from, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] statusLine = lines[0].split(" ");
+        if (statusLine.length < 2)
+            throw new IOException(String.format("GET %s: malformed status line '%s'", path, lines[0]));
+
+        int contentLength = -1;
+        boolean chunked = false;
+        String contentType = "";
+        // HTTP/1.0 closes the connection unless told otherwise
+        boolean connectionClose = statusLine[0].equals("HTTP/1.0");
+        try {
+            int status = Integer.parseInt(statusLine[1]);
+
+            for (int i = 1; i < lines.length; ++i) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("content-length"))
+                    contentLength = Integer.parseInt(value);
+                else if (name.equals("transfer-encoding") && value.equalsIgnoreCase("chunked"))
+                    chunked = true;
+                else if (name.equals("connection"))
+                    connectionClose = value.equalsIgnoreCase("close");
+                else if (name.equals("content-type"))
+                    contentType = value;
+            }
+
+            // the chunk sizes take precedence over a content length
+            if (chunked)
+                contentLength = -1;
+            return new HttpResponseHeader(status, end - from, contentLength, chunked, connectionClose, contentType);
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("GET %s: malformed header: %s", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return end of the chunked body starting at data[from] or -1 if data[from, to) doesn't
+     * hold the complete body yet
+     */
+    static int chunkedBodyEnd(byte[] data, int from, int to, String path) throws IOException {
+        int pos = from;
+        while (true) {
+            int lineEnd = findLineEnd(data, pos, to);
+            if (lineEnd < 0)
+                return -1;
+
+            int size = parseChunkSize(data, pos, lineEnd, path);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                // skip trailers up to the empty line
+                while (true) {
+                    lineEnd = findLineEnd(data, pos, to);
+                    if (lineEnd < 0)
+                        return -1;
+                    boolean empty = lineEnd == pos;
+                    pos = lineEnd + 2;
+                    if (empty)
+                        return pos;
+                }
+            }
+
+            pos += size + 2;
+            if (pos > to)
+                return -1;
+        }
+    }
+
+    /**
+     * Decodes a complete chunked body, trailers are ignored.
+     */
+    static byte[] decodeChunked(byte[] data, int from, int to, String path) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(to - from);
+        int pos = from;
+        while (true) {
+            int lineEnd = findLineEnd(data, pos, to);
+            if (lineEnd < 0)
+                throw new IOException(String.format("GET %s: truncated chunked body", path));
+
+            int size = parseChunkSize(data, pos, lineEnd, path);
+            if (size == 0)
+                return decoded.toByteArray();
+
+            pos = lineEnd + 2;
+            if (pos + size > to)
+                throw new IOException(String.format("GET %s: truncated chunked body", path));
+            decoded.write(data, pos, size);
+            pos += size + 2;
+        }
+    }
+
+    private static int findLineEnd(byte[] data, int from, int to) {
+        for (int i = from; i + 1 < to; ++i) {
+            if (data[i] == '\r' && data[i + 1] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int parseChunkSize(byte[] data, int from, int to, String path) throws IOException {
+        String sizeStr = new String(data, from, to - from, StandardCharsets.US_ASCII);
+        int extension = sizeStr.indexOf(';');
+        try {
+            return Integer.parseInt((extension < 0 ? sizeStr : sizeStr.substring(0, extension)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("GET %s: malformed chunk size '%s'", path, sizeStr));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package jschmer.x7remote;
+
+import java.util.Arrays;
+
+/**
+ * Millisecond histogram with fixed, roughly logarithmic buckets over the recent past.
+ *
+ * Recording only increments a counter, so it is cheap enough for every preview frame.
+ * Percentiles are reported as the upper bound of the bucket they fall into. Samples are
+ * counted in windows of {@link #WINDOW_MS}, percentiles cover the current and the previous
+ * window, so they follow a change in latency within two windows.
+ */
+class LatencyHistogram {
+    private static final long WINDOW_MS = 10 * 1000;
+    private static final int[] BOUNDS_MS = {
+            1, 2, 3, 4, 5, 6, 8, 10, 12, 15, 20, 25, 30, 40, 50, 60, 80, 100, 120, 150,
+            200, 250, 300, 400, 500, 600, 800, 1000, 1500, 2000, 3000, 5000
+    };
+
+    // guarded by this, the last bucket counts everything above the largest bound
+    private long[] counts = new long[BOUNDS_MS.length + 1];
+    private long[] previousCounts = new long[BOUNDS_MS.length + 1];
+    private long total = 0;
+    private long previousTotal = 0;
+    private long windowStart = CameraEventLoop.now();
+
+    synchronized void record(long ms) {
+        rotate();
+
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && ms > BOUNDS_MS[bucket])
+            ++bucket;
+        ++counts[bucket];
+        ++total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in ms of the bucket holding the percentile, -1 without recent
+     * samples and {@link Integer#MAX_VALUE} if it lies above the largest bucket
+     */
+    synchronized int percentile(double percentile) {
+        rotate();
+        long samples = total + previousTotal;
+        if (samples == 0)
+            return -1;
+
+        long rank = (long) Math.ceil(samples * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS_MS.length; ++bucket) {
+            seen += counts[bucket] + previousCounts[bucket];
+            if (seen >= rank)
+                return BOUNDS_MS[bucket];
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Starts a new window once the current one is over, drops the previous one.
+     */
+    private void rotate() {
+        long now = CameraEventLoop.now();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_MS)
+            return;
+
+        long[] recycled = previousCounts;
+        Arrays.fill(recycled, 0);
+        if (elapsed < 2 * WINDOW_MS) {
+            previousCounts = counts;
+            previousTotal = total;
+        } else {
+            // nothing recorded for a whole window, the current one is outdated as well
+            Arrays.fill(counts, 0);
+            previousCounts = counts;
+            previousTotal = 0;
+        }
+        counts = recycled;
+        total = 0;
+        windowStart = now;
+    }
+}
@@ -0,0 +1,58 @@
+package jschmer.x7remote;
+
+/**
+ * Single-slot handoff between two preview stages where only the newest item matters.
+ *
+ * Putting an item replaces one that wasn't taken yet, so a slow consumer skips items
+ * instead of working through a growing queue. The replaced item is handed back to the
+ * producer to recycle its buffers.
+ */
+class LatestSlot<T> {
+    // guarded by this
+    private T item = null;
+    private boolean closed = false;
+
+    /**
+     * @return the replaced item, or item itself if the slot was closed, or null
+     */
+    synchronized T put(T item) {
+        if (closed)
+            return item;
+
+        T previous = this.item;
+        this.item = item;
+        notifyAll();
+        return previous;
+    }
+
+    /**
+     * Blocks until an item is available.
+     *
+     * @return the item or null once the slot was closed
+     */
+    synchronized T take() throws InterruptedException {
+        while (item == null && !closed)
+            wait();
+        return poll();
+    }
+
+    /**
+     * @return the item or null if there is none
+     */
+    synchronized T poll() {
+        T taken = item;
+        item = null;
+        return taken;
+    }
+
+    /**
+     * Wakes up a blocked {@link #take()}, items put afterwards are rejected.
+     *
+     * @return the item that wasn't taken anymore or null
+     */
+    synchronized T close() {
+        closed = true;
+        notifyAll();
+        return poll();
+    }
+}
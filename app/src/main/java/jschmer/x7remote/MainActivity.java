@@ -1,43 +1,96 @@
 package jschmer.x7remote;
 
 import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import android.widget.Switch;
 
 public class MainActivity extends AppCompatActivity {
     public static final String EXTRA_COMING_FROM_MAIN = "Coming from Main";
 
     private static final String LOGTAG = MainActivity.class.getSimpleName();
+    // Wi-Fi state broadcasts come in bursts, only the last state is acted on
+    private static final long WIFI_DEBOUNCE_MS = 300;
+
     private WifiStateReceiver wifiListener = new WifiStateReceiver();
     private boolean wifiListenerActive = false;
     private boolean firstStart = true;
 
+    // only used on the UI thread
+    private final Handler handler = new Handler();
+    private NetworkInfo.State wifiState = NetworkInfo.State.UNKNOWN;
+    private final Runnable wifiStateSettled = this::onWifiStateSettled;
+    private boolean checkingConnectivity = false;
+    private boolean prewarmBound = false;
+
+    // connects the session ahead of time, CameraControl picks it up from the service
+    private final ServiceConnection prewarmConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            CameraSessionService service = ((CameraSessionService.LocalBinder) binder).getService();
+            AsyncTask.execute(() -> {
+                try {
+                    service.openSession(PreferenceManager.getDefaultSharedPreferences(MainActivity.this), getResources());
+                    Log.i(LOGTAG, "Session connected ahead of time");
+                } catch (ConnectionException | AssertionException e) {
+                    // CameraControl tries again and reports the error
+                    Log.w(LOGTAG, String.format("Connecting ahead of time failed: %s", e.getMessage()));
+                }
+                // the service keeps the session open for a while without anyone bound
+                runOnUiThread(() -> releasePrewarm());
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // broadcasts arrive on the UI thread
         wifiListener.addListener(state -> {
-            if (state == NetworkInfo.State.CONNECTED) {
-                checkAndUpdateConnectivity();
-            } else {
-                showWifiConfigUI();
-            }
+            wifiState = state;
+            handler.removeCallbacks(wifiStateSettled);
+            handler.postDelayed(wifiStateSettled, WIFI_DEBOUNCE_MS);
+        });
+
+        // only an app setting, so it doesn't mark the camera settings for syncing
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Switch prewarm = findViewById(R.id.switch_prewarm);
+        prewarm.setChecked(prefs.getBoolean(getString(R.string.pref_prewarm_key), true));
+        prewarm.setOnCheckedChangeListener((button, checked) -> {
+            prefs.edit().putBoolean(getString(R.string.pref_prewarm_key), checked).apply();
+            if (checked && findViewById(R.id.btn_connectCam).getVisibility() == View.VISIBLE)
+                prewarmSession();
         });
     }
 
+    private void onWifiStateSettled() {
+        if (wifiState == NetworkInfo.State.CONNECTED) {
+            checkAndUpdateConnectivity();
+        } else {
+            showWifiConfigUI();
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -47,13 +100,23 @@ public class MainActivity extends AppCompatActivity {
         wifiListenerActive = true;
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // the broadcast is sticky, onResume() gets the current state again
+        removeWifiListener();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         removeWifiListener();
+        releasePrewarm();
     }
 
     private void removeWifiListener() {
+        // a state change that is still being debounced doesn't matter anymore either
+        handler.removeCallbacks(wifiStateSettled);
         if (wifiListenerActive) {
             unregisterReceiver(wifiListener);
             wifiListenerActive = false;
@@ -77,29 +140,25 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void checkAndUpdateConnectivity() {
+        // a probe is already running, it finds out the same
+        if (checkingConnectivity)
+            return;
+        checkingConnectivity = true;
+
         AsyncTask.execute(() -> {
             runOnUiThread(() -> {
                 findViewById(R.id.progressBar).setVisibility(View.VISIBLE);
                 findViewById(R.id.checkingConnectivity).setVisibility(View.VISIBLE);
             });
 
-            int i = 0;
-            boolean reachable = isCamReachable();
             // It happens that the cam is not reachable yet directly after we receive
-            // a CONNECTED state from WifiManager, so do a simple retry for some time.
-            // Only do retry if the loading spinner is not active as we want to show the
-            // UI as fast as possible for the first time.
-            while (!reachable && i < 5 && !firstStart) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ignored) {
-                }
-                ++i;
-                reachable = isCamReachable();
-            }
+            // a CONNECTED state from WifiManager, so probe until it is for some time.
+            // Only probe once the first time as we want to show the UI as fast as possible.
+            boolean reachable = isCamReachable(firstStart ? 0 : X7RemoteSession.ReadyTimeoutMs);
 
             if (reachable) {
                 showConnectCamUI();
+                runOnUiThread(this::prewarmSession);
             } else {
                 showWifiConfigUI();
             }
@@ -108,20 +167,40 @@ public class MainActivity extends AppCompatActivity {
             runOnUiThread(() -> {
                 findViewById(R.id.progressBar).setVisibility(View.GONE);
                 findViewById(R.id.checkingConnectivity).setVisibility(View.GONE);
+                checkingConnectivity = false;
             });
         });
     }
 
-    private boolean isCamReachable() {
+    private boolean isCamReachable(long timeoutMs) {
         try {
-            try (Socket soc = new Socket()) {
-                soc.connect(new InetSocketAddress(X7RemoteSession.CamAddress, X7RemoteSession.CamPort), 2000);
+            CameraReadinessProbe probe = new CameraReadinessProbe(X7RemoteSession.CamAddress, X7RemoteSession.CamPort);
+            if (probe.awaitReady(timeoutMs)) {
+                Log.i(LOGTAG, "Camera reachable");
+                return true;
             }
-            Log.i(LOGTAG, "Camera reachable");
-            return true;
-        } catch (IOException ex) {
-            Log.i(LOGTAG, "Camera NOT reachable");
-            return false;
+        } catch (InterruptedException ignored) {
+        }
+        Log.i(LOGTAG, "Camera NOT reachable");
+        return false;
+    }
+
+    private void prewarmSession() {
+        boolean enabled = PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.pref_prewarm_key), true);
+        if (!enabled || prewarmBound || isFinishing())
+            return;
+
+        Log.i(LOGTAG, "Connecting ahead of time");
+        Intent service = new Intent(this, CameraSessionService.class);
+        startService(service);
+        prewarmBound = bindService(service, prewarmConnection, BIND_AUTO_CREATE);
+    }
+
+    private void releasePrewarm() {
+        if (prewarmBound) {
+            unbindService(prewarmConnection);
+            prewarmBound = false;
         }
     }
 
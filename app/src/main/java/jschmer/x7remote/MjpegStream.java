@@ -0,0 +1,301 @@
+package jschmer.x7remote;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.MjpegFrameSplitter;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+
+/**
+ * Continuous MJPEG feed read on the session's {@link CameraEventLoop}.
+ *
+ * Images are split off the feed as they arrive and only the latest one is kept, a
+ * consumer that is slower than the camera skips images instead of falling behind. Images
+ * are copied into buffers from a {@link ReceiveBufferPool}, skipped ones go straight back.
+ * The request is sent as HTTP/1.0 so the camera streams the raw feed without chunked
+ * encoding.
+ */
+class MjpegStream implements AutoCloseable, CameraEventLoop.Handler {
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final CameraEventLoop loop;
+    private final InetSocketAddress endpoint;
+    private final String path;
+    private final int timeoutMs;
+    private final ReceiveBufferPool buffers;
+
+    // only touched on the loop thread
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private ByteBuffer request;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_SIZE);
+    private byte[] headerBuffer = new byte[4096];
+    private int headerEnd = 0;
+    private MjpegFrameSplitter splitter = null;
+    private long lastProgress;
+
+    // response header handshake, completed on the loop
+    private final CountDownLatch headerReceived = new CountDownLatch(1);
+    private volatile HttpResponseHeader header = null;
+
+    // latest image not taken yet, guarded by this
+    private ByteSlice latest = null;
+    private IOException error = null;
+    private int dropped = 0;
+
+    private MjpegStream(CameraEventLoop loop, String host, int port, String path, int timeoutMs, ReceiveBufferPool buffers) {
+        this.loop = loop;
+        this.endpoint = new InetSocketAddress(host, port);
+        this.path = path;
+        this.timeoutMs = timeoutMs;
+        this.buffers = buffers;
+
+        String requestStr = String.format(Locale.US, "GET %s HTTP/1.0\r\nHost: %s\r\n\r\n", path, host);
+        request = ByteBuffer.wrap(requestStr.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Requests the feed and blocks until the camera answered.
+     *
+     * @return the stream or null if the camera answered with a single image instead of a
+     * continuous feed
+     */
+    static MjpegStream open(CameraEventLoop loop, String host, int port, String path, int timeoutMs, ReceiveBufferPool buffers) throws IOException {
+        if (!loop.isRunning())
+            throw new IOException("Event loop closed");
+
+        MjpegStream stream = new MjpegStream(loop, host, port, path, timeoutMs, buffers);
+        loop.execute(stream::start);
+
+        try {
+            // the loop enforces the timeout, this only guards against a dead loop
+            if (!stream.headerReceived.await(timeoutMs * 2 + 1000, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException(String.format("GET %s timed out", path));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stream.close();
+            throw new IOException(String.format("Interrupted during GET %s", path));
+        }
+
+        HttpResponseHeader header = stream.header;
+        if (header == null) {
+            stream.close();
+            throw stream.takeError();
+        }
+
+        IOException statusError = null;
+        if (header.status == 404)
+            statusError = new FileNotFoundException(path);
+        else if (header.status != 200)
+            statusError = new IOException(String.format(Locale.US, "GET %s: HTTP %d", path, header.status));
+        if (statusError != null) {
+            stream.close();
+            throw statusError;
+        }
+
+        // a response with a length is a single image
+        boolean continuous = header.contentType.toLowerCase(Locale.US).startsWith("multipart/") || header.contentLength < 0;
+        if (!continuous) {
+            stream.close();
+            return null;
+        }
+        return stream;
+    }
+
+    /**
+     * Blocks until an image newer than the last one taken is available. Its buffer belongs
+     * to the caller, who hands it back to the pool.
+     *
+     * @throws EOFException if the feed ended
+     */
+    synchronized ByteSlice awaitFrame() throws IOException {
+        long deadline = CameraEventLoop.now() + timeoutMs * 2 + 1000;
+        while (latest == null && error == null) {
+            long remaining = deadline - CameraEventLoop.now();
+            if (remaining <= 0)
+                throw new SocketTimeoutException(String.format("GET %s: no image", path));
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("Interrupted while waiting for %s", path));
+            }
+        }
+
+        if (latest == null)
+            throw error;
+        ByteSlice frame = latest;
+        latest = null;
+        return frame;
+    }
+
+    /**
+     * @return number of images replaced by a newer one before they were taken
+     */
+    synchronized int getDroppedFrames() {
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        if (!loop.isRunning()) {
+            fail(new IOException("Preview stream closed"));
+            return;
+        }
+        loop.execute(() -> {
+            closeChannel();
+            fail(new IOException("Preview stream closed"));
+        });
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                lastProgress = CameraEventLoop.now();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        if (key.isWritable()) {
+            channel.write(request);
+            if (!request.hasRemaining())
+                key.interestOps(SelectionKey.OP_READ);
+            lastProgress = CameraEventLoop.now();
+            return;
+        }
+
+        if (key.isReadable()) {
+            int read;
+            while ((read = channel.read(readBuffer)) > 0) {
+                lastProgress = CameraEventLoop.now();
+                readBuffer.flip();
+                if (splitter == null)
+                    receiveHeader();
+                else
+                    splitter.feed(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                readBuffer.clear();
+
+                if (splitter != null)
+                    publishFrames();
+            }
+            if (read < 0)
+                throw new EOFException(String.format("GET %s: stream ended", path));
+        }
+    }
+
+    @Override
+    public void onError(IOException e) {
+        closeChannel();
+        fail(e);
+    }
+
+    private void start() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+            lastProgress = CameraEventLoop.now();
+            loop.schedule(this::checkTimeout, timeoutMs);
+
+            if (channel.connect(endpoint))
+                key.interestOps(SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private void receiveHeader() throws IOException {
+        int length = readBuffer.remaining();
+        if (headerEnd + length > headerBuffer.length) {
+            if (headerBuffer.length >= 64 * 1024)
+                throw new IOException(String.format("GET %s: header too large", path));
+            byte[] grown = new byte[Math.max(headerBuffer.length * 2, headerEnd + length)];
+            System.arraycopy(headerBuffer, 0, grown, 0, headerEnd);
+            headerBuffer = grown;
+        }
+        readBuffer.get(headerBuffer, headerEnd, length);
+        headerEnd += length;
+
+        HttpResponseHeader parsed = HttpResponseHeader.parse(headerBuffer, 0, headerEnd, path);
+        if (parsed == null)
+            return;
+
+        // whatever followed the header is the start of the feed
+        splitter = new MjpegFrameSplitter(parsed.contentType);
+        splitter.feed(headerBuffer, parsed.length, headerEnd - parsed.length);
+        header = parsed;
+        headerReceived.countDown();
+    }
+
+    private void publishFrames() throws IOException {
+        ByteSlice newest = null;
+        ByteSlice frame;
+        int skipped = 0;
+        while ((frame = splitter.nextFrame(buffers)) != null) {
+            if (newest != null) {
+                buffers.release(newest.array);
+                ++skipped;
+            }
+            newest = frame;
+        }
+        if (newest == null)
+            return;
+
+        synchronized (this) {
+            if (latest != null) {
+                buffers.release(latest.array);
+                ++skipped;
+            }
+            dropped += skipped;
+            latest = newest;
+            notifyAll();
+        }
+    }
+
+    private void checkTimeout() {
+        if (channel == null)
+            return;
+
+        long idle = CameraEventLoop.now() - lastProgress;
+        if (idle >= timeoutMs) {
+            onError(new SocketTimeoutException(String.format("GET %s timed out", path)));
+            return;
+        }
+        loop.schedule(this::checkTimeout, timeoutMs - idle);
+    }
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        key = null;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (error == null)
+            error = e;
+        notifyAll();
+        headerReceived.countDown();
+    }
+
+    private synchronized IOException takeError() {
+        return error != null ? error : new IOException(String.format("GET %s failed", path));
+    }
+}
@@ -0,0 +1,179 @@
+package jschmer.x7remote;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Mutable bitmaps that preview decoding reuses through {@link BitmapFactory.Options#inBitmap}.
+ *
+ * Decoding every frame into a new bitmap allocates a few megabytes a second and the
+ * resulting garbage collections show up as preview jank. Bitmaps are handed back with
+ * {@link #release(Bitmap)} once they are no longer displayed; the released ones are kept
+ * up to the memory budget and reused by the next decode that fits into them.
+ *
+ * With a target size set, images are subsampled while decoding so the bitmap is no larger
+ * than needed to fill the view, and can be decoded as RGB_565 which halves the memory per
+ * pixel; the camera's JPEGs have no alpha channel to lose.
+ */
+class PreviewBitmapPool {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Bitmaps";
+    private final long budgetBytes;
+
+    // decode settings, 0 for no target size
+    private volatile int targetWidth = 0;
+    private volatile int targetHeight = 0;
+    private volatile Bitmap.Config config = Bitmap.Config.ARGB_8888;
+
+    // guarded by this
+    private final ArrayDeque<Bitmap> free = new ArrayDeque<>();
+    private long freeBytes = 0;
+    private int reused = 0;
+    private int allocated = 0;
+
+    PreviewBitmapPool(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Sets the size the images are displayed at, 0 decodes them at full size.
+     *
+     * @param lowColor decode without alpha channel and with less color depth
+     */
+    void setTarget(int width, int height, boolean lowColor) {
+        targetWidth = width;
+        targetHeight = height;
+        config = lowColor ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return the largest power of two the image can be subsampled by and still cover the
+     * target size in both dimensions
+     */
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return sampleSize;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Decodes a JPEG into a pooled bitmap if one fits.
+     *
+     * @return the bitmap or null if the data couldn't be decoded
+     */
+    Bitmap decode(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = config;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        // the decoder rounds subsampled sizes up
+        long width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        long height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        options.inBitmap = acquire(width * height * bytesPerPixel);
+        if (options.inBitmap == null)
+            return decodeNew(data, offset, length, options);
+
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+            if (bitmap == null) {
+                // broken image, the candidate is still fine
+                release(options.inBitmap);
+                return null;
+            }
+            synchronized (this) {
+                ++reused;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // the decoder refused the candidate, e.g. a different config
+            Log.w(LOGTAG, String.format("Bitmap reuse failed: %s", e.getMessage()));
+        }
+        options.inBitmap.recycle();
+        options.inBitmap = null;
+        return decodeNew(data, offset, length, options);
+    }
+
+    /**
+     * Hands a bitmap back that is no longer displayed. Bitmaps beyond the budget are
+     * recycled.
+     */
+    synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+            return;
+
+        long size = bitmap.getAllocationByteCount();
+        if (freeBytes + size > budgetBytes) {
+            bitmap.recycle();
+            return;
+        }
+        free.add(bitmap);
+        freeBytes += size;
+    }
+
+    /**
+     * Shrinks the pool for a {@link ComponentCallbacks2} memory level: to half the budget
+     * while the device runs low on memory, completely once memory is critical or the UI is
+     * hidden.
+     */
+    synchronized void trimMemory(int level) {
+        long target = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ? 0 : budgetBytes / 2;
+        while (freeBytes > target && !free.isEmpty()) {
+            Bitmap bitmap = free.poll();
+            freeBytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+        Log.i(LOGTAG, String.format("Trimmed to %d bytes for level %d", freeBytes, level));
+    }
+
+    /**
+     * Recycles all pooled bitmaps.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : free)
+            bitmap.recycle();
+        free.clear();
+        freeBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d reused, %d allocated, %d pooled (%d bytes)", reused, allocated, free.size(), freeBytes);
+    }
+
+    private synchronized Bitmap acquire(long bytes) {
+        Iterator<Bitmap> it = free.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getAllocationByteCount() >= bytes) {
+                it.remove();
+                freeBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private Bitmap decodeNew(byte[] data, int offset, int length, BitmapFactory.Options options) {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (bitmap != null) {
+            synchronized (this) {
+                ++allocated;
+            }
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,457 @@
+package jschmer.x7remote;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+
+/**
+ * Fetches preview frames over one persistent HTTP/1.1 connection.
+ *
+ * Frames are requested over one connection so the frame rate is limited by the link's
+ * bandwidth instead of connection setup. Only when frames are asked for faster than a round
+ * trip takes, {@link #get(long)} keeps up to {@code pipelineDepth} requests in flight, a
+ * pipelined frame that waited longer than one interval is dropped instead of shown late. If
+ * the camera closes the connection, requests that weren't answered yet are sent again on a
+ * new one. Like {@link HttpRequest} all socket work happens on the session's
+ * {@link CameraEventLoop}.
+ *
+ * The receive buffer lives as long as the client and grows to the Content-Length of the
+ * largest response, frames are handed out in buffers from a {@link ReceiveBufferPool}.
+ */
+class PreviewHttpClient implements AutoCloseable, CameraEventLoop.Handler {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Preview";
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // reconnects in a row without a single response before giving up
+    private static final int MAX_RECONNECTS = 2;
+
+    private final CameraEventLoop loop;
+    private final InetSocketAddress endpoint;
+    private final String path;
+    private final int timeoutMs;
+    private final int pipelineDepth;
+    private final ReceiveBufferPool buffers;
+    private final byte[] request;
+
+    // requests handed out by get but not consumed yet, only used by the calling thread
+    private final ArrayDeque<Frame> issued = new ArrayDeque<>();
+    private long lastRoundTripMs = 0;
+
+    // everything below is only touched on the loop thread
+    // requests waiting for their response in order, the first `sent` of them are written
+    private final ArrayDeque<Frame> inFlight = new ArrayDeque<>();
+    private int sent = 0;
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private boolean connected = false;
+    private int reconnects = 0;
+    private ByteBuffer outbound = ByteBuffer.allocate(1024);
+    private byte[] inbound = new byte[INITIAL_CAPACITY];
+    private int inboundEnd = 0;
+    private HttpResponseHeader header = null;
+    private long lastProgress = 0;
+    private boolean timeoutScheduled = false;
+    private boolean closed = false;
+
+    private static class Frame {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ByteSlice body = null;
+        private volatile IOException error = null;
+        // loop times the request reached the head of the line and the response completed
+        private volatile long headAt = 0;
+        private volatile long completedAt = 0;
+
+        void complete(ByteSlice body) {
+            this.body = body;
+            completedAt = CameraEventLoop.now();
+            done.countDown();
+        }
+
+        void fail(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        ByteSlice await(long timeoutMs, String path) throws IOException {
+            try {
+                // the loop enforces the timeout, this only guards against a dead loop
+                if (!done.await(timeoutMs, TimeUnit.MILLISECONDS))
+                    throw new SocketTimeoutException(String.format("GET %s timed out", path));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("Interrupted during GET %s", path));
+            }
+            if (error != null)
+                throw error;
+            return body;
+        }
+    }
+
+    PreviewHttpClient(CameraEventLoop loop, String host, int port, String path, int timeoutMs, int pipelineDepth, ReceiveBufferPool buffers) {
+        this.loop = loop;
+        this.endpoint = new InetSocketAddress(host, port);
+        this.path = path;
+        this.timeoutMs = timeoutMs;
+        this.pipelineDepth = pipelineDepth;
+        this.buffers = buffers;
+
+        String requestStr = String.format(
+                Locale.US,
+                "GET %s HTTP/1.1\r\nHost: %s\r\nConnection: keep-alive\r\n\r\n",
+                path,
+                host
+        );
+        request = requestStr.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Blocks until the next frame was received, its buffer belongs to the caller. A 404 is
+     * reported as {@link FileNotFoundException} and a timeout as
+     * {@link SocketTimeoutException}.
+     *
+     * @param intervalMs time between calls, the next frame is only requested ahead of time
+     *                   if that is shorter than a round trip
+     */
+    synchronized ByteSlice get(long intervalMs) throws IOException {
+        if (!loop.isRunning())
+            throw new IOException("Event loop closed");
+
+        long now = CameraEventLoop.now();
+        int depth = intervalMs < lastRoundTripMs ? pipelineDepth : 1;
+        try {
+            while (true) {
+                while (issued.size() < depth) {
+                    Frame frame = new Frame();
+                    issued.add(frame);
+                    loop.execute(() -> enqueue(frame));
+                }
+
+                Frame frame = issued.poll();
+                ByteSlice body = frame.await(timeoutMs * 2 + 1000, path);
+                lastRoundTripMs = frame.completedAt - frame.headAt;
+                // arrived before the last interval started, a newer one is on its way
+                if (body.length > 0 && frame.completedAt < now - intervalMs) {
+                    buffers.release(body.array);
+                    depth = 1;
+                    continue;
+                }
+                return body;
+            }
+        } catch (IOException e) {
+            // requests issued along with the failed one most likely fail the same way
+            issued.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * @return time between the request of the frame last received by {@link #get(long)}
+     * reaching the head of the line and its response arriving, without the time it waited
+     * for the responses ahead of it
+     */
+    synchronized long getLastRoundTripMs() {
+        return lastRoundTripMs;
+    }
+
+    @Override
+    public void close() {
+        if (!loop.isRunning())
+            return;
+        loop.execute(() -> {
+            closed = true;
+            disconnect();
+            failAll(new IOException("Preview client closed"));
+        });
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                connected = true;
+                lastProgress = CameraEventLoop.now();
+                writeRequests();
+            }
+            return;
+        }
+
+        if (key.isWritable())
+            flushOutbound();
+
+        if (key.isReadable()) {
+            int read;
+            do {
+                // a partial response always starts at the front of the buffer
+                int needed = header != null && header.contentLength >= 0 ? header.length + header.contentLength : 0;
+                if (needed > inbound.length)
+                    growInbound(needed);
+                else if (inboundEnd == inbound.length)
+                    growInbound(inbound.length * 2);
+
+                read = channel.read(ByteBuffer.wrap(inbound, inboundEnd, inbound.length - inboundEnd));
+                if (read > 0) {
+                    inboundEnd += read;
+                    lastProgress = CameraEventLoop.now();
+                    if (!parseResponses())
+                        return;
+                }
+            } while (read > 0);
+
+            if (read < 0)
+                connectionClosed();
+        }
+    }
+
+    @Override
+    public void onError(IOException e) {
+        disconnect();
+        if (closed || !loop.isRunning()) {
+            failAll(e);
+            return;
+        }
+
+        // only the current connection failed, the client itself stays usable
+        Log.w(LOGTAG, String.format("Preview connection failed: %s", e));
+        if (!reconnect())
+            failAll(e);
+    }
+
+    private void growInbound(int capacity) {
+        byte[] grown = new byte[capacity];
+        System.arraycopy(inbound, 0, grown, 0, inboundEnd);
+        inbound = grown;
+    }
+
+    private void enqueue(Frame frame) {
+        if (closed) {
+            frame.fail(new IOException("Preview client closed"));
+            return;
+        }
+
+        // an idle connection has nothing to time out, the clock starts with the request
+        if (inFlight.isEmpty())
+            lastProgress = CameraEventLoop.now();
+        inFlight.add(frame);
+        scheduleTimeout();
+        if (channel == null) {
+            connect();
+        } else if (connected) {
+            try {
+                writeRequests();
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+    }
+
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+            lastProgress = CameraEventLoop.now();
+
+            if (channel.connect(endpoint)) {
+                connected = true;
+                writeRequests();
+            }
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        channel = null;
+        key = null;
+        connected = false;
+        sent = 0;
+        outbound.clear();
+        inboundEnd = 0;
+        header = null;
+    }
+
+    /**
+     * Connects again for the requests that weren't answered yet.
+     *
+     * @return false if the camera keeps dropping the connection without answering
+     */
+    private boolean reconnect() {
+        if (inFlight.isEmpty())
+            return true;
+        if (++reconnects > MAX_RECONNECTS)
+            return false;
+
+        connect();
+        return true;
+    }
+
+    private void writeRequests() throws IOException {
+        int unsent = inFlight.size() - sent;
+        if (unsent <= 0)
+            return;
+
+        if (outbound.remaining() < unsent * request.length) {
+            ByteBuffer grown = ByteBuffer.allocate(outbound.position() + unsent * request.length);
+            outbound.flip();
+            grown.put(outbound);
+            outbound = grown;
+        }
+        for (int i = 0; i < unsent; ++i)
+            outbound.put(request);
+
+        // requests behind others reach the head of the line once the response ahead completed
+        if (sent == 0)
+            inFlight.peek().headAt = CameraEventLoop.now();
+        sent = inFlight.size();
+
+        flushOutbound();
+    }
+
+    private void flushOutbound() throws IOException {
+        outbound.flip();
+        channel.write(outbound);
+        outbound.compact();
+
+        int ops = outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /**
+     * Completes every request whose response is fully buffered.
+     *
+     * @return false if the connection was closed after a response
+     */
+    private boolean parseResponses() throws IOException {
+        int start = 0;
+        while (true) {
+            if (header == null) {
+                header = HttpResponseHeader.parse(inbound, start, inboundEnd, path);
+                if (header == null)
+                    break;
+            }
+
+            int bodyStart = start + header.length;
+            int bodyEnd;
+            if (header.chunked)
+                bodyEnd = HttpResponseHeader.chunkedBodyEnd(inbound, bodyStart, inboundEnd, path);
+            else if (header.contentLength >= 0)
+                bodyEnd = inboundEnd - bodyStart >= header.contentLength ? bodyStart + header.contentLength : -1;
+            else
+                bodyEnd = -1; // the body ends with the connection
+            if (bodyEnd < 0)
+                break;
+
+            boolean close = header.connectionClose;
+            completeNext(bodyStart, bodyEnd);
+            start = bodyEnd;
+
+            if (close) {
+                disconnect();
+                reconnect();
+                return false;
+            }
+        }
+
+        // keep the partial response at the front of the buffer
+        if (start > 0) {
+            System.arraycopy(inbound, start, inbound, 0, inboundEnd - start);
+            inboundEnd -= start;
+        }
+        return true;
+    }
+
+    private void completeNext(int bodyStart, int bodyEnd) throws IOException {
+        HttpResponseHeader response = header;
+        header = null;
+        reconnects = 0;
+        --sent;
+
+        Frame frame = inFlight.poll();
+        if (frame == null) {
+            Log.w(LOGTAG, "Response without request");
+            return;
+        }
+        if (sent > 0)
+            inFlight.peek().headAt = CameraEventLoop.now();
+
+        if (response.status == 404) {
+            frame.fail(new FileNotFoundException(path));
+        } else if (response.status != 200) {
+            frame.fail(new IOException(String.format(Locale.US, "GET %s: HTTP %d", path, response.status)));
+        } else if (response.chunked) {
+            byte[] body = HttpResponseHeader.decodeChunked(inbound, bodyStart, bodyEnd, path);
+            frame.complete(new ByteSlice(body, 0, body.length));
+        } else {
+            int length = bodyEnd - bodyStart;
+            byte[] body = buffers.acquire(length);
+            System.arraycopy(inbound, bodyStart, body, 0, length);
+            frame.complete(new ByteSlice(body, 0, length));
+        }
+    }
+
+    private void connectionClosed() throws IOException {
+        // a response without length ends with the connection
+        if (header != null && !header.chunked && header.contentLength < 0) {
+            int start = header.length;
+            completeNext(start, inboundEnd);
+        } else if (header != null || inboundEnd > 0) {
+            Log.w(LOGTAG, "Connection closed in the middle of a response");
+        }
+
+        disconnect();
+        if (!reconnect())
+            failAll(new EOFException(String.format("GET %s: connection closed early", path)));
+    }
+
+    private void scheduleTimeout() {
+        if (timeoutScheduled)
+            return;
+        timeoutScheduled = true;
+        loop.schedule(this::checkTimeout, timeoutMs);
+    }
+
+    private void checkTimeout() {
+        timeoutScheduled = false;
+        if (closed || inFlight.isEmpty())
+            return;
+
+        long idle = CameraEventLoop.now() - lastProgress;
+        if (idle >= timeoutMs) {
+            Log.w(LOGTAG, String.format("GET %s timed out", path));
+            disconnect();
+            failAll(new SocketTimeoutException(String.format("GET %s timed out", path)));
+            return;
+        }
+
+        timeoutScheduled = true;
+        loop.schedule(this::checkTimeout, timeoutMs - idle);
+    }
+
+    private void failAll(IOException e) {
+        reconnects = 0;
+        Frame frame;
+        while ((frame = inFlight.poll()) != null)
+            frame.fail(e);
+    }
+}
@@ -0,0 +1,186 @@
+package jschmer.x7remote;
+
+import android.graphics.Bitmap;
+
+import java.util.Locale;
+
+import jschmer.x7remote.protocol.ByteSlice;
+
+/**
+ * Counters and histograms of the preview pipeline, from receiving a frame to drawing it.
+ *
+ * A frame's age is measured from the moment its bytes were received until it was drawn.
+ * The receive time follows the frame through the stages by the identity of its buffer and
+ * then its bitmap, only the few frames in flight are tracked. Rates are computed over the
+ * last completed window of about a second.
+ */
+class PreviewMetrics {
+    private static final long WINDOW_MS = 1000;
+    // frames in flight between receiving and drawing, more are never tracked
+    private static final int TRACKED = 8;
+
+    private final LatencyHistogram fetch = new LatencyHistogram();
+    private final LatencyHistogram decode = new LatencyHistogram();
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    private final LatencyHistogram age = new LatencyHistogram();
+
+    // guarded by this
+    private final Object[] trackedFrames = new Object[TRACKED];
+    private final long[] receivedAt = new long[TRACKED];
+    private int nextTracked = 0;
+    private long received = 0;
+    private long rendered = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    private long windowStart = CameraEventLoop.now();
+    private long windowFrames = 0;
+    private long windowBytes = 0;
+    private double fps = 0;
+    private double bytesPerSecond = 0;
+
+    /**
+     * Immutable view of the metrics, percentiles cover the last 10 to 20 seconds and are -1
+     * without samples.
+     */
+    static class Snapshot {
+        final double fps;
+        final double bytesPerSecond;
+        final long received;
+        final long rendered;
+        final long dropped;
+        final long failed;
+        final int ageP50, ageP90, ageP99;
+        final int decodeP50, decodeP90, decodeP99;
+        final int fetchP50, fetchP90;
+        final int deliveryP90;
+
+        private Snapshot(PreviewMetrics metrics) {
+            synchronized (metrics) {
+                fps = metrics.fps;
+                bytesPerSecond = metrics.bytesPerSecond;
+                received = metrics.received;
+                rendered = metrics.rendered;
+                dropped = metrics.dropped;
+                failed = metrics.failed;
+            }
+            ageP50 = metrics.age.percentile(50);
+            ageP90 = metrics.age.percentile(90);
+            ageP99 = metrics.age.percentile(99);
+            decodeP50 = metrics.decode.percentile(50);
+            decodeP90 = metrics.decode.percentile(90);
+            decodeP99 = metrics.decode.percentile(99);
+            fetchP50 = metrics.fetch.percentile(50);
+            fetchP90 = metrics.fetch.percentile(90);
+            deliveryP90 = metrics.delivery.percentile(90);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.US,
+                    "%.1f fps, %.0f kB/s\n%d received, %d drawn, %d dropped, %d failed\n" +
+                            "age p50/90/99 %d/%d/%d ms\ndecode p50/90/99 %d/%d/%d ms\n" +
+                            "fetch p50/90 %d/%d ms, delivery p90 %d ms",
+                    fps, bytesPerSecond / 1024, received, rendered, dropped, failed,
+                    ageP50, ageP90, ageP99, decodeP50, decodeP90, decodeP99,
+                    fetchP50, fetchP90, deliveryP90
+            );
+        }
+    }
+
+    /**
+     * @param fetchMs time spent waiting for the frame, -1 if the camera pushed it
+     */
+    void frameReceived(ByteSlice frame, long fetchMs) {
+        long now = CameraEventLoop.now();
+        if (fetchMs >= 0)
+            fetch.record(fetchMs);
+
+        synchronized (this) {
+            ++received;
+            windowBytes += frame.length;
+            track(frame, now);
+            rollWindow(now);
+        }
+    }
+
+    synchronized void frameFailed() {
+        ++failed;
+    }
+
+    /**
+     * Counts frames that were replaced by a newer one before the next stage took them.
+     */
+    synchronized void framesDropped(int count) {
+        dropped += count;
+    }
+
+    /**
+     * @param bitmap the decoded frame or null if decoding failed
+     */
+    void frameDecoded(ByteSlice frame, Bitmap bitmap, long decodeMs) {
+        decode.record(decodeMs);
+        synchronized (this) {
+            long receiveTime = untrack(frame);
+            if (receiveTime >= 0 && bitmap != null)
+                track(bitmap, receiveTime);
+        }
+    }
+
+    /**
+     * @param deliveryMs time the listeners took to take the frame
+     */
+    void frameDelivered(long deliveryMs) {
+        delivery.record(deliveryMs);
+    }
+
+    void frameRendered(Bitmap bitmap) {
+        long now = CameraEventLoop.now();
+        long receiveTime;
+        synchronized (this) {
+            ++rendered;
+            ++windowFrames;
+            rollWindow(now);
+            receiveTime = untrack(bitmap);
+        }
+        if (receiveTime >= 0)
+            age.record(now - receiveTime);
+    }
+
+    Snapshot snapshot() {
+        synchronized (this) {
+            rollWindow(CameraEventLoop.now());
+        }
+        return new Snapshot(this);
+    }
+
+    private void rollWindow(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_MS)
+            return;
+
+        fps = windowFrames * 1000.0 / elapsed;
+        bytesPerSecond = windowBytes * 1000.0 / elapsed;
+        windowStart = now;
+        windowFrames = 0;
+        windowBytes = 0;
+    }
+
+    private void track(Object frame, long receiveTime) {
+        // buffers and bitmaps are pooled, forget what a skipped frame left behind
+        untrack(frame);
+        trackedFrames[nextTracked] = frame;
+        receivedAt[nextTracked] = receiveTime;
+        nextTracked = (nextTracked + 1) % TRACKED;
+    }
+
+    private long untrack(Object frame) {
+        for (int i = 0; i < TRACKED; ++i) {
+            if (trackedFrames[i] == frame) {
+                trackedFrames[i] = null;
+                return receivedAt[i];
+            }
+        }
+        return -1;
+    }
+}
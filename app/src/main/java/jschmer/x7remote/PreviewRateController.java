@@ -0,0 +1,103 @@
+package jschmer.x7remote;
+
+import java.util.Locale;
+
+/**
+ * Paces the polled preview by the measured cost of the frames.
+ *
+ * The interval between requests moves between a floor, which depends on whether the camera
+ * records and whether the preview is visible, and {@link #MAX_INTERVAL_MS}. Frames that
+ * arrive about as fast as the fastest ones seen so far let the interval shrink step by
+ * step towards the floor; fetches that take much longer than that mean requests queue up
+ * somewhere on the link and back the interval off multiplicatively, as do failed or timed
+ * out frames. The interval never drops below twice the decode time so decoding doesn't
+ * eat the phone's CPU.
+ */
+class PreviewRateController {
+    static final int MIN_INTERVAL_MS = 50;
+    static final int RECORDING_INTERVAL_MS = 200;
+    static final int HIDDEN_INTERVAL_MS = 1000;
+    static final int MAX_INTERVAL_MS = 1000;
+    // interval decrease per frame that arrived in time
+    private static final int STEP_MS = 10;
+    // weight of the newest sample in the averages
+    private static final double ALPHA = 0.25;
+
+    // guarded by this
+    private boolean visible = true;
+    private double interval = MIN_INTERVAL_MS;
+    private double fetchMs = -1;
+    private double decodeMs = 0;
+    private double baselineFetchMs = -1;
+    private int frames = 0;
+    private int failures = 0;
+
+    /**
+     * Records a frame that was fetched.
+     */
+    synchronized void frameFetched(long fetchTimeMs) {
+        ++frames;
+        fetchMs = fetchMs < 0 ? fetchTimeMs : fetchMs + ALPHA * (fetchTimeMs - fetchMs);
+
+        // the baseline follows the fastest fetches and slowly forgets them, the link may
+        // have become slower for good
+        if (baselineFetchMs < 0 || fetchTimeMs < baselineFetchMs)
+            baselineFetchMs = fetchTimeMs;
+        else
+            baselineFetchMs += 0.01 * (fetchTimeMs - baselineFetchMs);
+
+        if (fetchMs > 2 * baselineFetchMs + STEP_MS)
+            interval = Math.min(MAX_INTERVAL_MS, interval * 1.5);
+        else
+            interval -= STEP_MS;
+    }
+
+    /**
+     * Records how long decoding a frame took, decoding runs apart from fetching.
+     */
+    synchronized void frameDecoded(long decodeTimeMs) {
+        decodeMs += ALPHA * (decodeTimeMs - decodeMs);
+    }
+
+    /**
+     * Records a frame that failed or timed out.
+     */
+    synchronized void frameFailed() {
+        ++failures;
+        interval = Math.min(MAX_INTERVAL_MS, interval * 2);
+    }
+
+    synchronized void setVisible(boolean visible) {
+        // start over at full speed instead of creeping down from the hidden rate
+        if (visible && !this.visible)
+            interval = MIN_INTERVAL_MS;
+        this.visible = visible;
+    }
+
+    /**
+     * @return interval between preview requests the rate currently aims for
+     */
+    synchronized long getIntervalMs() {
+        return Math.round(interval);
+    }
+
+    /**
+     * @param elapsedMs time since the current frame was requested
+     * @param recording whether the camera records, it has less bandwidth to spare then
+     * @return delay before the next frame is requested
+     */
+    synchronized long nextDelayMs(long elapsedMs, boolean recording) {
+        int floor = !visible ? HIDDEN_INTERVAL_MS : recording ? RECORDING_INTERVAL_MS : MIN_INTERVAL_MS;
+        interval = Math.max(interval, Math.max(floor, 2 * decodeMs));
+        return Math.max(0, Math.round(interval) - elapsedMs);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "interval %.0f ms, fetch %.0f ms (baseline %.0f ms), decode %.0f ms, %d frames, %d failed",
+                interval, fetchMs, baselineFetchMs, decodeMs, frames, failures
+        );
+    }
+}
@@ -0,0 +1,196 @@
+package jschmer.x7remote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+
+/**
+ * The last seconds of raw preview JPEGs in a fixed block of off-heap memory.
+ *
+ * Frames are written one after the other into a direct buffer and wrap around at its end,
+ * the oldest frames are dropped when they are overwritten or older than the maximum age.
+ * The frame index is preallocated as well, so appending doesn't allocate on the heap.
+ * Frames are addressed by a sequence number that keeps counting up, a frame that was
+ * dropped in the meantime simply isn't found anymore. Every frame keeps its arrival time,
+ * replay and export follow it instead of the frame count since the preview rate varies.
+ */
+class PreviewRingBuffer {
+    // raw MJPEG has no timing, players like ffmpeg assume this rate
+    static final int EXPORT_FPS = 25;
+
+    private final ByteBuffer data;
+    private final long maxAgeMs;
+
+    // index of the frames [firstSeq, nextSeq), frame seq lives at seq % maxFrames
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] timestamps;
+
+    // guarded by this
+    private long firstSeq = 0;
+    private long nextSeq = 0;
+    private int writePos = 0;
+
+    /**
+     * @param capacityBytes memory for the frame data
+     * @param maxFrames     frames kept at most
+     * @param maxAgeMs      frames older than this are dropped
+     */
+    PreviewRingBuffer(int capacityBytes, int maxFrames, long maxAgeMs) {
+        this.data = ByteBuffer.allocateDirect(capacityBytes);
+        this.maxAgeMs = maxAgeMs;
+        offsets = new int[maxFrames];
+        lengths = new int[maxFrames];
+        timestamps = new long[maxFrames];
+    }
+
+    /**
+     * Copies a frame into the buffer, dropping as many old frames as necessary.
+     */
+    synchronized void append(byte[] frame, int offset, int length, long timestamp) {
+        if (length > data.capacity())
+            return;
+
+        while (firstSeq < nextSeq && timestamp - timestamps[slot(firstSeq)] > maxAgeMs)
+            ++firstSeq;
+        if (nextSeq - firstSeq == offsets.length)
+            ++firstSeq;
+
+        int pos = writePos;
+        if (pos + length > data.capacity()) {
+            // everything behind the write position was written before the frames in front
+            // of it, those are the oldest ones
+            while (firstSeq < nextSeq && offsets[slot(firstSeq)] >= writePos)
+                ++firstSeq;
+            pos = 0;
+        }
+        while (firstSeq < nextSeq && overlaps(slot(firstSeq), pos, length))
+            ++firstSeq;
+
+        data.position(pos);
+        data.put(frame, offset, length);
+
+        int slot = slot(nextSeq++);
+        offsets[slot] = pos;
+        lengths[slot] = length;
+        timestamps[slot] = timestamp;
+        writePos = pos + length;
+    }
+
+    /**
+     * @return sequence number of the oldest frame still available
+     */
+    synchronized long getFirstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * @return sequence number the next frame will get
+     */
+    synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return when the frame arrived or -1 if it isn't available anymore
+     */
+    synchronized long getTimestamp(long seq) {
+        return contains(seq) ? timestamps[slot(seq)] : -1;
+    }
+
+    /**
+     * @return the last frame of [fromSeq, toSeq) that arrived at or before the timestamp,
+     * the first available one if none did or -1 if none of them is available anymore
+     */
+    synchronized long seqAt(long timestamp, long fromSeq, long toSeq) {
+        long low = Math.max(fromSeq, firstSeq);
+        long high = Math.min(toSeq, nextSeq) - 1;
+        if (low > high)
+            return -1;
+
+        // arrival times only increase with the sequence number
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (timestamps[slot(mid)] <= timestamp)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Copies a frame into a buffer from the pool.
+     *
+     * @return the frame or null if it isn't available anymore
+     */
+    synchronized ByteSlice read(long seq, ReceiveBufferPool buffers) {
+        if (!contains(seq))
+            return null;
+
+        int slot = slot(seq);
+        byte[] frame = buffers.acquire(lengths[slot]);
+        data.position(offsets[slot]);
+        data.get(frame, 0, lengths[slot]);
+        return new ByteSlice(frame, 0, lengths[slot]);
+    }
+
+    /**
+     * Writes the frames [fromSeq, toSeq) that are still available as concatenated JPEGs, the
+     * format ffmpeg and most players read as raw MJPEG. Frames are repeated or skipped to get
+     * {@link #EXPORT_FPS} by their arrival times, so the clip plays in real time. The buffer
+     * isn't locked while writing so the preview keeps being recorded.
+     *
+     * @return number of frames written
+     */
+    int export(OutputStream out, long fromSeq, long toSeq, ReceiveBufferPool buffers) throws IOException {
+        long first = seqAt(Long.MIN_VALUE, fromSeq, toSeq);
+        long start = getTimestamp(first);
+        long end = getTimestamp(Math.min(toSeq, getNextSeq()) - 1);
+        if (start < 0 || end < 0)
+            return 0;
+
+        int written = 0;
+        long shownSeq = -1;
+        ByteSlice frame = null;
+        try {
+            for (long tick = 0; start + tick * 1000 / EXPORT_FPS <= end; ++tick) {
+                long seq = seqAt(start + tick * 1000 / EXPORT_FPS, fromSeq, toSeq);
+                if (seq != shownSeq) {
+                    if (frame != null)
+                        buffers.release(frame.array);
+                    frame = read(seq, buffers);
+                    shownSeq = seq;
+                }
+                if (frame == null)
+                    continue;
+                out.write(frame.array, frame.offset, frame.length);
+                ++written;
+            }
+        } finally {
+            if (frame != null)
+                buffers.release(frame.array);
+        }
+        return written;
+    }
+
+    synchronized void clear() {
+        firstSeq = nextSeq;
+        writePos = 0;
+    }
+
+    private boolean contains(long seq) {
+        return seq >= firstSeq && seq < nextSeq;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % offsets.length);
+    }
+
+    private boolean overlaps(int slot, int pos, int length) {
+        return offsets[slot] < pos + length && offsets[slot] + lengths[slot] > pos;
+    }
+}
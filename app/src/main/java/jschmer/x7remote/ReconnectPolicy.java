@@ -0,0 +1,39 @@
+package jschmer.x7remote;
+
+/**
+ * How hard a session tries to get a lost connection back before it gives up and closes.
+ *
+ * Every interruption gets the full budget: at most maxAttempts reconnects within budgetMs
+ * after the connection was lost. Attempts after the first one are spaced out exponentially.
+ */
+class ReconnectPolicy {
+    static final ReconnectPolicy DEFAULT = new ReconnectPolicy(5, 30 * 1000);
+
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 4000;
+
+    final int maxAttempts;
+    final long budgetMs;
+
+    ReconnectPolicy(int maxAttempts, long budgetMs) {
+        this.maxAttempts = maxAttempts;
+        this.budgetMs = budgetMs;
+    }
+
+    /**
+     * @param attempt 1 for the first reconnect
+     * @return pause before the attempt, jittered between half and all of the backoff
+     */
+    long backoffMs(int attempt) {
+        if (attempt <= 1)
+            return 0;
+
+        long backoff = Math.min(INITIAL_BACKOFF_MS << Math.min(attempt - 2, 16), MAX_BACKOFF_MS);
+        return backoff / 2 + (long) (Math.random() * backoff / 2);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d attempts within %d s", maxAttempts, budgetMs / 1000);
+    }
+}
@@ -0,0 +1,107 @@
+package jschmer.x7remote;
+
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending reply to a request sent over a {@link CameraConnection}. Completed on the
+ * connection's event loop once the matching reply arrived.
+ */
+class ReplyFuture implements Future<JSONObject> {
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    final int msgId;
+    final String type;
+    final long sentAt = CameraEventLoop.now();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile JSONObject reply = null;
+    private volatile String error = null;
+    private volatile boolean cancelled = false;
+
+    ReplyFuture(int msgId, String type) {
+        this.msgId = msgId;
+        this.type = type;
+    }
+
+    void complete(JSONObject reply) {
+        this.reply = reply;
+        done.countDown();
+    }
+
+    void fail(String error) {
+        this.error = error;
+        done.countDown();
+    }
+
+    /**
+     * Waits for the reply with the default timeout.
+     */
+    JSONObject await() throws SendMessageException {
+        return await(DEFAULT_TIMEOUT_MS);
+    }
+
+    JSONObject await(long timeoutMs) throws SendMessageException {
+        try {
+            return get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendMessageException("Interrupted while waiting for reply to: " + this);
+        } catch (ExecutionException e) {
+            throw new SendMessageException(e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new SendMessageException("Timed out waiting for reply to: " + this);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone())
+            return false;
+        cancelled = true;
+        fail("Request cancelled");
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public JSONObject get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public JSONObject get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    @Override
+    public String toString() {
+        return type == null
+                ? String.format(Locale.US, "msg_id %d", msgId)
+                : String.format(Locale.US, "msg_id %d (%s)", msgId, type);
+    }
+
+    private JSONObject result() throws ExecutionException {
+        if (error != null)
+            throw new ExecutionException(new SendMessageException(error));
+        return reply;
+    }
+}
@@ -0,0 +1,241 @@
+package jschmer.x7remote;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide scheduler for the periodic work of all sessions: keep alive, status polling
+ * and preview ticks.
+ *
+ * Every task has a due time and a deadline, its due time plus some slack. The dispatcher
+ * only wakes up for the earliest deadline and then starts every task that is due, so tasks
+ * with overlapping windows share a wakeup. Tasks run on a shared pool of worker threads
+ * that outlive the sessions, so a slow task doesn't hold up the others and connecting
+ * doesn't start new threads. A periodic task is never run concurrently with itself, runs
+ * that come due while the previous one still runs are skipped.
+ *
+ * Each session schedules through its own {@link Group} and cancels the group on shutdown.
+ * Blocking one-off work of the sessions, like the handshake steps and the preview loops,
+ * runs on the same workers through {@link #execute} and {@link #submit}.
+ */
+class SessionScheduler {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Scheduler";
+    private static SessionScheduler instance = null;
+
+    private final Object lock = new Object();
+    // guarded by lock, ordered by deadline
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private final ExecutorService workers;
+
+    /**
+     * Tasks of one session.
+     */
+    class Group {
+        private final String name;
+        // guarded by lock
+        private final List<Task> tasks = new ArrayList<>();
+        private boolean cancelled = false;
+
+        private Group(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Runs the action once after the delay.
+         *
+         * @param slackMs how much later than the delay the action may run
+         */
+        Task schedule(Runnable action, long delayMs, long slackMs) {
+            return add(new Task(this, action, 0, slackMs), delayMs);
+        }
+
+        /**
+         * Runs the action every periodMs, the first time after the delay.
+         *
+         * @param slackMs how much later than due every run may start
+         */
+        Task scheduleAtFixedRate(Runnable action, long delayMs, long periodMs, long slackMs) {
+            return add(new Task(this, action, periodMs, slackMs), delayMs);
+        }
+
+        /**
+         * Cancels all tasks of the group, tasks scheduled afterwards never run. Runs that
+         * already started finish.
+         */
+        void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                for (Task task : tasks) {
+                    task.cancelled = true;
+                    queue.remove(task);
+                }
+                tasks.clear();
+            }
+        }
+
+        private Task add(Task task, long delayMs) {
+            synchronized (lock) {
+                if (cancelled) {
+                    task.cancelled = true;
+                    return task;
+                }
+                tasks.add(task);
+                task.setDue(CameraEventLoop.now() + delayMs);
+                queue.add(task);
+                lock.notifyAll();
+            }
+            return task;
+        }
+    }
+
+    class Task implements Comparable<Task> {
+        private final Group group;
+        private final Runnable action;
+        private final long periodMs;
+        private final long slackMs;
+        // guarded by lock
+        private long due;
+        private long deadline;
+        private boolean cancelled = false;
+
+        private Task(Group group, Runnable action, long periodMs, long slackMs) {
+            this.group = group;
+            this.action = action;
+            this.periodMs = periodMs;
+            this.slackMs = slackMs;
+        }
+
+        void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                queue.remove(this);
+                group.tasks.remove(this);
+            }
+        }
+
+        private void setDue(long due) {
+            this.due = due;
+            this.deadline = due + slackMs;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    static synchronized SessionScheduler get() {
+        if (instance == null)
+            instance = new SessionScheduler();
+        return instance;
+    }
+
+    private SessionScheduler() {
+        // idle workers go away after a while, the app may sit in the background for long
+        workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "X7RemoteSession-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread dispatcher = new Thread(this::dispatch, "X7RemoteSession-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    Group newGroup(String name) {
+        return new Group(name);
+    }
+
+    /**
+     * Runs the action on a worker right away, a long running action keeps its worker.
+     */
+    void execute(Runnable action) {
+        workers.execute(action);
+    }
+
+    /**
+     * Runs the action on a worker right away, cancelling the future interrupts it.
+     */
+    <T> Future<T> submit(Callable<T> action) {
+        return workers.submit(action);
+    }
+
+    private void dispatch() {
+        List<Task> dueTasks = new ArrayList<>();
+        while (true) {
+            synchronized (lock) {
+                try {
+                    Task first = queue.peek();
+                    long now = CameraEventLoop.now();
+                    if (first == null) {
+                        lock.wait();
+                        continue;
+                    }
+                    if (first.deadline > now) {
+                        lock.wait(first.deadline - now);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // one wakeup for everything that is due by now
+                long now = CameraEventLoop.now();
+                Iterator<Task> it = queue.iterator();
+                while (it.hasNext()) {
+                    Task task = it.next();
+                    if (task.due > now)
+                        continue;
+                    it.remove();
+                    dueTasks.add(task);
+                }
+            }
+
+            for (Task task : dueTasks)
+                workers.execute(() -> run(task));
+            dueTasks.clear();
+        }
+    }
+
+    private void run(Task task) {
+        try {
+            task.action.run();
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, String.format("%s: task failed: %s", task.group.name, e));
+        }
+
+        synchronized (lock) {
+            if (task.cancelled)
+                return;
+            if (task.periodMs <= 0) {
+                task.group.tasks.remove(task);
+                return;
+            }
+
+            // the task is queued again only now, so it never overlaps with itself. Fixed rate,
+            // runs that were missed while it ran are dropped
+            long now = CameraEventLoop.now();
+            task.setDue(task.due + periodsBehind(task, now) * task.periodMs);
+            queue.add(task);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return number of periods to add to the task's due time to get past now, at least 1
+     */
+    private static long periodsBehind(Task task, long now) {
+        return Math.max(1, (now - task.due) / task.periodMs + 1);
+    }
+}
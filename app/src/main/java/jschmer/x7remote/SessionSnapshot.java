@@ -0,0 +1,142 @@
+package jschmer.x7remote;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * What the last session learned about a camera, so reconnecting can skip most of the work.
+ *
+ * Holds the camera's setting values and how it serves the preview, the recording state comes
+ * with the config document anyway. Whether the preview runs at all isn't kept, a camera
+ * restarted with its own button stops it. Snapshots are stored in the shared preferences per
+ * camera, identified by the serial number in its config document: every X7 has the same
+ * address. Cameras that don't report one share a single snapshot.
+ * Whether the snapshot still describes the camera is checked against the config document,
+ * which is downloaded on every connect anyway: all settings the config and the snapshot have
+ * in common need to have the same value.
+ */
+class SessionSnapshot {
+    private static final String LOGTAG = X7RemoteSession.class.getSimpleName() + "|Snapshot";
+    private static final String KEY_PREFIX = "session_snapshot_";
+    private static final String UNIDENTIFIED = "unidentified";
+    // older snapshots aren't trusted, the camera may have been reset in the meantime
+    private static final long MAX_AGE_MS = 30 * 60 * 1000;
+
+    final Map<String, String> settings;
+    // null if it isn't known yet whether the camera streams the preview or serves single images
+    final Boolean previewStreaming;
+    final long savedAt;
+
+    SessionSnapshot(Map<String, String> settings, Boolean previewStreaming) {
+        this(settings, previewStreaming, System.currentTimeMillis());
+    }
+
+    private SessionSnapshot(Map<String, String> settings, Boolean previewStreaming, long savedAt) {
+        this.settings = settings;
+        this.previewStreaming = previewStreaming;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * @return the camera's id to store its snapshot under
+     */
+    static String cameraId(JSONObject config) {
+        String serial = config.optString("serial_number", "");
+        return serial.isEmpty() ? UNIDENTIFIED : serial;
+    }
+
+    /**
+     * Tells whether loading a snapshot is worth waiting for the config document, expired
+     * snapshots of other cameras count as well.
+     */
+    static boolean anyStored(SharedPreferences sharedPrefs) {
+        for (String key : sharedPrefs.getAll().keySet()) {
+            if (key.startsWith(KEY_PREFIX))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param cameraId see {@link #cameraId(JSONObject)}
+     * @return the snapshot of the camera or null if there is none or it is too old
+     */
+    static SessionSnapshot load(SharedPreferences sharedPrefs, String cameraId) {
+        String stored = sharedPrefs.getString(key(cameraId), null);
+        if (stored == null)
+            return null;
+
+        try {
+            JSONObject json = new JSONObject(stored);
+            long savedAt = json.getLong("saved_at");
+            long age = System.currentTimeMillis() - savedAt;
+            if (age < 0 || age > MAX_AGE_MS) {
+                Log.i(LOGTAG, String.format("Snapshot is %d s old, dropping it", age / 1000));
+                clear(sharedPrefs, cameraId);
+                return null;
+            }
+
+            Map<String, String> settings = new HashMap<>();
+            JSONObject jsonSettings = json.getJSONObject("settings");
+            Iterator<String> keys = jsonSettings.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                settings.put(key, jsonSettings.getString(key));
+            }
+
+            Boolean previewStreaming = json.has("preview_streaming") ? json.getBoolean("preview_streaming") : null;
+            return new SessionSnapshot(settings, previewStreaming, savedAt);
+        } catch (JSONException e) {
+            Log.w(LOGTAG, String.format("Dropping unreadable snapshot: %s", e.getMessage()));
+            sharedPrefs.edit().remove(key(cameraId)).apply();
+            return null;
+        }
+    }
+
+    void save(SharedPreferences sharedPrefs, String cameraId) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("settings", new JSONObject(settings));
+            if (previewStreaming != null)
+                json.put("preview_streaming", previewStreaming.booleanValue());
+            json.put("saved_at", savedAt);
+            sharedPrefs.edit().putString(key(cameraId), json.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(LOGTAG, String.format("Failed to save snapshot: %s", e.getMessage()));
+        }
+    }
+
+    static void clear(SharedPreferences sharedPrefs, String cameraId) {
+        sharedPrefs.edit().remove(key(cameraId)).apply();
+    }
+
+    /**
+     * @return whether the camera's config agrees with the snapshot, at least one setting
+     * has to be compared
+     */
+    boolean matches(JSONObject config) {
+        int compared = 0;
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String value = config.optString(setting.getKey(), null);
+            if (value == null)
+                continue;
+            if (!value.equals(setting.getValue())) {
+                Log.i(LOGTAG, String.format("Snapshot is outdated, '%s' changed", setting.getKey()));
+                return false;
+            }
+            ++compared;
+        }
+        return compared > 0;
+    }
+
+    private static String key(String cameraId) {
+        return KEY_PREFIX + cameraId;
+    }
+}
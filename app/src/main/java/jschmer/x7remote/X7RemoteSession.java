@@ -1,5 +1,6 @@
 package jschmer.x7remote;
 
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -7,127 +8,140 @@ import android.graphics.BitmapFactory;
 import android.net.NetworkInfo;
 import android.support.annotation.NonNull;
 import android.util.Log;
-import android.util.Pair;
 
-import org.apache.commons.io.IOUtils;
+import jschmer.x7remote.HandshakeTimings.Phase;
+import jschmer.x7remote.protocol.BatteryLevel;
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.CameraCommand;
+import jschmer.x7remote.protocol.CameraNotification;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-enum BatteryLevel {
-    L0(0),
-    L1(1),
-    L2(2),
-    L3(3),
-    L4(4),
-    AC(5);
-
-    private final int value;
-
-    BatteryLevel(int value) {
-        this.value = value;
-    }
-
-    static BatteryLevel fromValue(int value) {
-        BatteryLevel[] levels = BatteryLevel.values();
-        for (BatteryLevel level : levels) {
-            if (level.getValue() == value)
-                return level;
-        }
-        throw new ArrayIndexOutOfBoundsException("BatteryLevel does not have value '" + value + "'");
-    }
-
-    public int getValue() {
-        return value;
-    }
-}
-
-enum ReplyMode {
-    Ignore,
-    Read
-}
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 interface X7RemoteSessionListener
 {
     void stateChanged(NetworkInfo.State newstate, String reason);
     void recordingStatusChanged(boolean recording);
     void generalInfoChanged(BatteryLevel level, int sdCardCapacity);
+    // called on the preview decoder thread, only with the newest frame; hand bmp back with
+    // X7RemoteSession.releasePreviewImage() once it isn't displayed anymore
     void newCamPreviewImageAvailable(Bitmap bmp);
+    void notificationReceived(CameraNotification notification);
+    // the connection was lost and is re-established in the background, commands fail meanwhile
+    void connectionInterrupted(String reason);
+    // preview and status continue, attempts is the number of reconnects it took
+    void connectionResumed(int attempts);
 }
 
-public class X7RemoteSession implements AutoCloseable {
-    private static final String LOGTAGNETWORK = "|Network";
+public class X7RemoteSession implements AutoCloseable, CameraConnectionListener {
     private static final String LOGTAG = X7RemoteSession.class.getSimpleName();
     // camera config key -> (sharedPref config key, is boolean config)
-    private static Map<String, Pair<String, Boolean>> camConfigKeyToSharedPrefKeyMap = null;
+    private static Map<String, SharedPrefKey> camConfigKeyToSharedPrefKeyMap = null;
+
+    // plain class instead of android.util.Pair, so the session also runs in JVM unit tests
+    private static class SharedPrefKey {
+        final String name;
+        final boolean isBool;
 
-    // list of (property, value) messages to skip
-    private static final List<Pair<String, String>> tcpRepliesToSkip = new ArrayList<Pair<String, String>>() {{
-        add(Pair.create("msg_id", "16777217"));
-    }};
+        SharedPrefKey(String name, boolean isBool) {
+            this.name = name;
+            this.isBool = isBool;
+        }
+    }
 
     static final String CamAddress = "192.168.42.1";
     static final int CamPort = 7878;
+    static final int CamHttpPort = 80;
+    static final String PreviewPath = "/mjpeg/amba.jpg";
+    // how long to wait for a camera that doesn't accept connections or sessions yet
+    static final long ReadyTimeoutMs = 5000;
+    static final long SessionInitTimeoutMs = 2000;
+    // delay before reopening a preview stream that broke off, doubled while it keeps failing
+    static final long PreviewStreamRetryMinMs = 250;
+    static final long PreviewStreamRetryMaxMs = 8000;
+
+    // camera endpoint, only differs from the constants when talking to the simulator
+    private final String camAddress;
+    private final int camPort;
+    private final int camHttpPort;
 
     private final List<X7RemoteSessionListener> listeners  = new CopyOnWriteArrayList<>();
     private NetworkInfo.State state = NetworkInfo.State.DISCONNECTED;
 
-    private Socket sock = null;
-    private BufferedReader sock_in = null;
-    private BufferedWriter sock_out = null;
-    private int SessionID = 0;
-    private boolean recording = false;
+    private volatile CameraEventLoop eventLoop = null;
+    private volatile CameraConnection connection = null;
+    private volatile PreviewHttpClient previewClient = null;
+    private volatile MjpegStream previewStream = null;
+    private volatile int SessionID = 0;
+    private volatile boolean recording = false;
+    private volatile BatteryLevel batteryLevel = BatteryLevel.L4;
+    private volatile int sdCardCapacity = 0;
+    private volatile boolean camStatusKnown = false;
+    private final CameraSettingsCache settingsCache = new CameraSettingsCache();
     private boolean previewSupported = false;
-
-    private Timer periodicTimer = new Timer();
-    private Timer previewImageTimer = new Timer();
-
-    enum CameraCommand {
-        Session_Init(1),
-        Session_Close(2),
-        Video_Capture_Start(3),
-        Video_Capture_Stop(4),
-        Take_Picture(5),
-        Set_Setting(6),
-        Get_Setting(7),
-        Remote_Pair(8),
-        Setting_Change_Stop(12),
-        Setting_Change_Start(13),
-        Power_OFF(32),
-        Switch_Mode_Video(33),
-        Switch_Mode_Picture(34),
-        Keep_Alive(64);
-
-        private final int id;
-        CameraCommand(int id) { this.id = id; }
-        public int getId() { return id; }
-    }
+    // whether the camera streams the preview, null until known
+    private volatile Boolean previewStreaming = null;
+    // snapshots are saved for the next session once the handshake completed
+    private final SharedPreferences snapshotPrefs;
+    // identifies the camera's snapshot, known once the config document arrived
+    private volatile String cameraId = null;
+    private volatile boolean snapshotValid = false;
+    private volatile boolean closed = false;
+    private final Object shutdownLock = new Object();
+    private final HandshakeTimings timings = new HandshakeTimings();
+    private final PreviewBitmapPool bitmapPool = new PreviewBitmapPool(8 * 1024 * 1024);
+    private final ReceiveBufferPool previewBuffers = new ReceiveBufferPool(4);
+    private final PreviewRateController previewRate = new PreviewRateController();
+    private final PreviewMetrics previewMetrics = new PreviewMetrics();
+    // raw preview frames for instant replay, guarded by shutdownLock, only allocated once
+    // the preview is shown
+    private volatile PreviewRingBuffer previewHistory = null;
+    private volatile int previewHistoryBytes = 16 * 1024 * 1024;
+    private volatile boolean previewVisible = true;
+    // handoff from fetching to decoding the preview, render is the listener's business
+    private final LatestSlot<ByteSlice> encodedPreview = new LatestSlot<>();
+
+    // keep alive, status polling and preview ticks of the current connection, cancelled when
+    // it goes away
+    private volatile SessionScheduler.Group scheduled = SessionScheduler.get().newGroup("X7RemoteSession");
+
+    private final ReconnectPolicy reconnectPolicy = ReconnectPolicy.DEFAULT;
+    // once the handshake completed a lost connection is re-established instead of closing
+    private volatile boolean established = false;
+    // while Session_Init is retried a lost connection is replaced by the retry
+    private volatile boolean startingSession = false;
+    // guarded by shutdownLock, the generation counts the connections torn down so far,
+    // threads and tasks of an older one stop on their own
+    private boolean reconnecting = false;
+    private volatile int linkGeneration = 0;
+    // guarded by shutdownLock, connection the preview was turned on again for
+    private int previewReenabled = -1;
 
     //region Public interface
     X7RemoteSession(SharedPreferences sharedPrefs, Resources res) throws ConnectionException, AssertionException {
+        this(sharedPrefs, res, CamAddress, CamPort, CamHttpPort);
+    }
+
+    X7RemoteSession(SharedPreferences sharedPrefs, Resources res, String address, int port, int httpPort) throws ConnectionException, AssertionException {
+        camAddress = address;
+        camPort = port;
+        camHttpPort = httpPort;
+        snapshotPrefs = sharedPrefs;
         initSession(sharedPrefs, res);
     }
 
@@ -143,6 +157,126 @@ public class X7RemoteSession implements AutoCloseable {
         return previewSupported;
     }
 
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return whether battery level and sd card capacity were read from the camera yet
+     */
+    boolean isCamStatusKnown() {
+        return camStatusKnown;
+    }
+
+    BatteryLevel getBatteryLevel() {
+        return batteryLevel;
+    }
+
+    int getSdCardCapacity() {
+        return sdCardCapacity;
+    }
+
+    HandshakeTimings getHandshakeTimings() {
+        return timings;
+    }
+
+    /**
+     * Returns a preview image for reuse by the next decode, bmp must not be drawn anymore.
+     */
+    void releasePreviewImage(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    /**
+     * Reports a preview image that was drawn, for the frame age metrics.
+     */
+    void previewImageRendered(Bitmap bmp) {
+        previewMetrics.frameRendered(bmp);
+    }
+
+    /**
+     * Returns a preview image that was replaced by a newer one before it was drawn.
+     */
+    void previewImageSkipped(Bitmap bmp) {
+        previewMetrics.framesDropped(1);
+        bitmapPool.release(bmp);
+    }
+
+    PreviewMetrics.Snapshot getPreviewMetrics() {
+        return previewMetrics.snapshot();
+    }
+
+    /**
+     * @return the recently received preview frames or null if there is no preview or it
+     * wasn't shown yet
+     */
+    PreviewRingBuffer getPreviewHistory() {
+        return previewHistory;
+    }
+
+    /**
+     * Decodes a frame from {@link #getPreviewHistory()}, hand it back with
+     * {@link #releasePreviewImage(Bitmap)} like live images.
+     *
+     * @return the image or null if the frame isn't available anymore
+     */
+    Bitmap decodePreviewHistoryFrame(long seq) {
+        PreviewRingBuffer history = previewHistory;
+        ByteSlice frame = history != null ? history.read(seq, previewBuffers) : null;
+        if (frame == null)
+            return null;
+
+        Bitmap bitmap = bitmapPool.decode(frame.array, frame.offset, frame.length);
+        previewBuffers.release(frame.array);
+        return bitmap;
+    }
+
+    /**
+     * Writes the history frames [fromSeq, toSeq) as MJPEG.
+     *
+     * @return number of frames written
+     */
+    int exportPreviewHistory(OutputStream out, long fromSeq, long toSeq) throws IOException {
+        PreviewRingBuffer history = previewHistory;
+        return history != null ? history.export(out, fromSeq, toSeq, previewBuffers) : 0;
+    }
+
+    /**
+     * Preview images are decoded just large enough to fill a view of this size, see
+     * {@link PreviewBitmapPool#setTarget(int, int, boolean)}.
+     */
+    void setPreviewTargetSize(int width, int height, boolean lowColor) {
+        bitmapPool.setTarget(width, height, lowColor);
+    }
+
+    /**
+     * A hidden preview is only refreshed now and then and not decoded at all. The preview
+     * history is allocated the first time the preview is shown.
+     */
+    void setPreviewVisible(boolean visible) {
+        previewVisible = visible;
+        previewRate.setVisible(visible);
+        if (visible)
+            allocatePreviewHistory();
+    }
+
+    /**
+     * Low RAM devices get a smaller preview history, applies to the next allocation.
+     */
+    void setLowRamDevice(boolean lowRam) {
+        previewHistoryBytes = (lowRam ? 4 : 16) * 1024 * 1024;
+    }
+
+    /**
+     * Frees pooled preview images and, when memory runs low, the preview history, level is
+     * a ComponentCallbacks2 trim level.
+     */
+    void trimMemory(int level) {
+        bitmapPool.trimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            releasePreviewHistory();
+    }
+
     @Override
     public void close() {
         shutdown();
@@ -172,59 +306,163 @@ public class X7RemoteSession implements AutoCloseable {
         sendCommandWithAssert(CameraCommand.Take_Picture, 0);
     }
 
+    @Override
+    public void connectionLost(String reason) {
+        if (startingSession) {
+            Log.w(LOGTAG, String.format("Connection lost while starting the session: %s", reason));
+            return;
+        }
+        // shutting down blocks, so don't do it on the event loop
+        SessionScheduler.get().execute(() -> linkLost(reason));
+    }
+
+    /**
+     * Called on the connection's event loop, must not wait for replies.
+     */
+    @Override
+    public void notificationReceived(CameraNotification notification) {
+        Log.i(LOGTAG, String.format("Camera notification: %s", notification));
+
+        switch (notification.type) {
+            case RecordingStarted:
+            case RecordingStopped:
+                recording = notification.type == CameraNotification.Type.RecordingStarted;
+                fireRecordingStatusChanged(recording);
+                break;
+            case BatteryChanged:
+                try {
+                    batteryLevel = BatteryLevel.fromValue(Integer.parseInt(notification.param));
+                    fireCamStatusChanged(batteryLevel, sdCardCapacity);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    Log.w(LOGTAG, String.format("Unexpected battery level '%s'", notification.param));
+                }
+                break;
+            case SdCardFull:
+                sdCardCapacity = 0;
+                fireCamStatusChanged(batteryLevel, sdCardCapacity);
+                break;
+            case SettingChanged:
+                settingsCache.invalidate(notification.param);
+                break;
+        }
+
+        fireNotificationReceived(notification);
+    }
+
+    /**
+     * Pushes the settings changed since connecting to the camera, for a session that stayed
+     * open while they were edited. Only the changed settings are sent, the current values
+     * are known from the settings cache.
+     */
+    synchronized void applyPendingSettings(SharedPreferences sharedPrefs, Resources res) throws ConnectionException {
+        String updateKey = res.getString(R.string.pref_update);
+        if (!sharedPrefs.getBoolean(updateKey, false))
+            return;
+
+        boolean ok = setSettings(sharedPrefs, new JSONObject());
+        sharedPrefs.edit().putBoolean(updateKey, false).apply();
+        if (!ok) {
+            abort("Failed to synchronize settings");
+            throw new ConnectionException("Failed to synchronize settings");
+        }
+    }
+
     void powerOff() throws SendMessageException {
-        sendCommand(CameraCommand.Power_OFF, ReplyMode.Ignore);
+        // the stream configuration doesn't survive a restart
+        snapshotValid = false;
+        if (cameraId != null)
+            SessionSnapshot.clear(snapshotPrefs, cameraId);
+
+        // the camera powers off right away, so don't wait for the reply
+        sendCommand(CameraCommand.Power_OFF);
         shutdown();
     }
     //endregion
 
     //region Private interface
-    private static Map<String, Pair<String, Boolean>> buildKeyMap(Resources res) {
-        Map<String, Pair<String, Boolean>> aMap = new HashMap<>();
-        aMap.put("video_option", new Pair<>(res.getString(R.string.pref_video_mode_key), false));
-        aMap.put("video_resolution", new Pair<>(res.getString(R.string.pref_video_resolution_key), false));
-        aMap.put("video_quality", new Pair<>(res.getString(R.string.pref_video_quality_key), false));
-        aMap.put("auto_rec", new Pair<>(res.getString(R.string.pref_video_autorec_key), false));
-        aMap.put("photo_option", new Pair<>(res.getString(R.string.pref_photo_mode_key), false));
-        aMap.put("photo_size", new Pair<>(res.getString(R.string.pref_photo_resolution_key), false));
-        aMap.put("photo_quality", new Pair<>(res.getString(R.string.pref_photo_quality_key), false));
-        aMap.put("time_stamp", new Pair<>(res.getString(R.string.pref_effects_timestap_key), true));
-        aMap.put("aqua_mode", new Pair<>(res.getString(R.string.pref_effects_aqua_mode_key), true));
-        aMap.put("fov", new Pair<>(res.getString(R.string.pref_effects_fov_key), false));
-        aMap.put("ae_metering", new Pair<>(res.getString(R.string.pref_effects_ae_metering_key), false));
-        aMap.put("vout", new Pair<>(res.getString(R.string.pref_system_tv_mode_key), false));
-        aMap.put("mic", new Pair<>(res.getString(R.string.pref_system_mic_volume_key), false));
-        aMap.put("buzzer", new Pair<>(res.getString(R.string.pref_system_buzzer_key), true));
-        aMap.put("led", new Pair<>(res.getString(R.string.pref_system_led_key), true));
-        aMap.put("auto_lcd_off", new Pair<>(res.getString(R.string.pref_system_auto_lcd_off_key), true));
-        aMap.put("auto_power_off", new Pair<>(res.getString(R.string.pref_system_auto_power_off_key), true));
+    private static Map<String, SharedPrefKey> buildKeyMap(Resources res) {
+        Map<String, SharedPrefKey> aMap = new HashMap<>();
+        aMap.put("video_option", new SharedPrefKey(res.getString(R.string.pref_video_mode_key), false));
+        aMap.put("video_resolution", new SharedPrefKey(res.getString(R.string.pref_video_resolution_key), false));
+        aMap.put("video_quality", new SharedPrefKey(res.getString(R.string.pref_video_quality_key), false));
+        aMap.put("auto_rec", new SharedPrefKey(res.getString(R.string.pref_video_autorec_key), false));
+        aMap.put("photo_option", new SharedPrefKey(res.getString(R.string.pref_photo_mode_key), false));
+        aMap.put("photo_size", new SharedPrefKey(res.getString(R.string.pref_photo_resolution_key), false));
+        aMap.put("photo_quality", new SharedPrefKey(res.getString(R.string.pref_photo_quality_key), false));
+        aMap.put("time_stamp", new SharedPrefKey(res.getString(R.string.pref_effects_timestap_key), true));
+        aMap.put("aqua_mode", new SharedPrefKey(res.getString(R.string.pref_effects_aqua_mode_key), true));
+        aMap.put("fov", new SharedPrefKey(res.getString(R.string.pref_effects_fov_key), false));
+        aMap.put("ae_metering", new SharedPrefKey(res.getString(R.string.pref_effects_ae_metering_key), false));
+        aMap.put("vout", new SharedPrefKey(res.getString(R.string.pref_system_tv_mode_key), false));
+        aMap.put("mic", new SharedPrefKey(res.getString(R.string.pref_system_mic_volume_key), false));
+        aMap.put("buzzer", new SharedPrefKey(res.getString(R.string.pref_system_buzzer_key), true));
+        aMap.put("led", new SharedPrefKey(res.getString(R.string.pref_system_led_key), true));
+        aMap.put("auto_lcd_off", new SharedPrefKey(res.getString(R.string.pref_system_auto_lcd_off_key), true));
+        aMap.put("auto_power_off", new SharedPrefKey(res.getString(R.string.pref_system_auto_power_off_key), true));
         return aMap;
     }
 
-    private boolean getSettings(SharedPreferences sharedPrefs) {
+    /**
+     * Fills the settings cache with the current value of every mapped setting. Values are
+     * taken from the config document when available, only keys it lacks are requested
+     * over TCP.
+     */
+    private void loadSettingsCache(JSONObject config) {
+        Map<String, String> camValues = new HashMap<>();
+
+        // send the remaining reads back-to-back and collect the replies afterwards
+        Map<String, ReplyFuture> requests = new LinkedHashMap<>();
+        for (String camKey : camConfigKeyToSharedPrefKeyMap.keySet()) {
+            try {
+                if (config.has(camKey)) {
+                    camValues.put(camKey, config.getString(camKey));
+                } else if (!settingsCache.has(camKey)) {
+                    requests.put(camKey, requestSetting(camKey));
+                }
+            } catch (JSONException | SendMessageException e) {
+                e.printStackTrace();
+                Log.e(LOGTAG, "Failed to get setting '" + camKey + "' from camera: " + e.getMessage());
+            }
+        }
+
+        if (!requests.isEmpty())
+            Log.i(LOGTAG, String.format("Config is missing %d settings, requesting them", requests.size()));
+
+        for (Map.Entry<String, ReplyFuture> request : requests.entrySet()) {
+            String camKey = request.getKey();
+            try {
+                camValues.put(camKey, awaitSetting(request.getValue()));
+            } catch (SendMessageException e) {
+                e.printStackTrace();
+                Log.e(LOGTAG, "Failed to get setting '" + camKey + "' from camera: " + e.getMessage());
+            }
+        }
+
+        settingsCache.putAll(camValues);
+        Log.i(LOGTAG, String.format("Settings cache version: %d", settingsCache.getVersion()));
+    }
+
+    private boolean getSettings(SharedPreferences sharedPrefs, JSONObject config) {
         Log.i(LOGTAG, "Initializing shared preferences with cam preferences");
 
-        boolean ok = true;
+        loadSettingsCache(config);
+        Map<String, String> camValues = settingsCache.snapshot();
+        boolean ok = camValues.keySet().containsAll(camConfigKeyToSharedPrefKeyMap.keySet());
 
         SharedPreferences.Editor edit = sharedPrefs.edit();
+        for (Map.Entry<String, SharedPrefKey> entry : camConfigKeyToSharedPrefKeyMap.entrySet()) {
+            String camValue = camValues.get(entry.getKey());
+            String sharedprefKey = entry.getValue().name;
+            boolean isBoolPref = entry.getValue().isBool;
 
-        for (Map.Entry<String, Pair<String, Boolean>> entry : camConfigKeyToSharedPrefKeyMap.entrySet()) {
-            String camKey = entry.getKey();
-            String sharedprefKey = entry.getValue().first;
-            boolean isBoolPref = entry.getValue().second;
+            if (camValue == null)
+                continue;
 
-            try {
-                String camValue = getSetting(camKey);
-                if (isBoolPref) {
-                    boolean boolVal = camValue.equals("1");
-                    edit.putBoolean(sharedprefKey, boolVal);
-                } else {
-                    edit.putString(sharedprefKey, camValue);
-                }
-            } catch (SendMessageException e) {
-                e.printStackTrace();
-                Log.e(LOGTAG, "Failed to get setting '" + camKey + "' from camera!");
-                ok = false;
+            if (isBoolPref) {
+                boolean boolVal = camValue.equals("1");
+                edit.putBoolean(sharedprefKey, boolVal);
+            } else {
+                edit.putString(sharedprefKey, camValue);
             }
         }
         ok = edit.commit() && ok;
@@ -232,96 +470,111 @@ public class X7RemoteSession implements AutoCloseable {
         return ok;
     }
 
-    private boolean setSettings(SharedPreferences sharedPrefs) {
+    private boolean setSettings(SharedPreferences sharedPrefs, JSONObject config) {
         Log.i(LOGTAG, "Syncing preferences to cam");
 
-        boolean ok = true;
+        loadSettingsCache(config);
+        Map<String, String> camValues = settingsCache.snapshot();
+        boolean ok = camValues.keySet().containsAll(camConfigKeyToSharedPrefKeyMap.keySet());
 
-        for (Map.Entry<String, Pair<String, Boolean>> entry : camConfigKeyToSharedPrefKeyMap.entrySet()) {
+        // collect the settings that differ from the camera
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (Map.Entry<String, SharedPrefKey> entry : camConfigKeyToSharedPrefKeyMap.entrySet()) {
             String camKey = entry.getKey();
-            String sharedprefKey = entry.getValue().first;
-            boolean isBoolPref = entry.getValue().second;
+            String camValue = camValues.get(camKey);
+            String sharedprefKey = entry.getValue().name;
+            boolean isBoolPref = entry.getValue().isBool;
 
-            String camValue;
-            try {
-                camValue = getSetting(camKey);
-            } catch (SendMessageException e) {
-                e.printStackTrace();
-                Log.e(LOGTAG, "Failed to get setting '" + camKey + "' from camera: " + e.getMessage());
-                ok = false;
+            if (camValue == null)
                 continue;
+
+            String newCamValue = isBoolPref
+                    ? (sharedPrefs.getBoolean(sharedprefKey, false) ? "1" : "0")
+                    : sharedPrefs.getString(sharedprefKey, "");
+            if (!newCamValue.equals(camValue)) {
+                Log.i(LOGTAG, "Update setting: " + camKey + "=" + newCamValue);
+                changes.put(camKey, newCamValue);
             }
+        }
 
-            try {
-                if (isBoolPref) {
-                    boolean sharedPrefValue = sharedPrefs.getBoolean(sharedprefKey, false);
-                    boolean camConfBoolValue = camValue.equals("1");
-                    if (sharedPrefValue != camConfBoolValue) {
-                        String newCamValue = sharedPrefValue ? "1" : "0";
-                        Log.i(LOGTAG, "Update setting: " + camKey + "=" + newCamValue);
-                        setSetting(camKey, newCamValue);
-                    }
-                } else {
-                    String sharedPrefValue = sharedPrefs.getString(sharedprefKey, "");
-                    if (!sharedPrefValue.equals(camValue)) {
-                        Log.i(LOGTAG, "Update setting: " + camKey + "=" + sharedPrefValue);
-                        setSetting(camKey, sharedPrefValue);
-                    }
-                }
-            } catch (SendMessageException e) {
-                e.printStackTrace();
-                Log.e(LOGTAG, "Failed to set setting '" + camKey + "' on camera: " + e.getMessage());
-                ok = false;
-
-                // Set shared pref back to camera value
-                if (isBoolPref) {
-                    sharedPrefs.edit().putBoolean(sharedprefKey, camValue.equals("1")).apply();
-                } else {
-                    sharedPrefs.edit().putString(sharedprefKey, camValue).apply();
-                }
+        if (changes.isEmpty())
+            return ok;
+
+        List<String> failedKeys;
+        try {
+            failedKeys = applySettings(changes);
+        } catch (SendMessageException e) {
+            e.printStackTrace();
+            Log.e(LOGTAG, "Failed to change settings on camera: " + e.getMessage());
+            failedKeys = new ArrayList<>(changes.keySet());
+        }
+
+        // Set shared prefs back to camera value
+        SharedPreferences.Editor edit = sharedPrefs.edit();
+        for (String camKey : failedKeys) {
+            String camValue = camValues.get(camKey);
+            String sharedprefKey = camConfigKeyToSharedPrefKeyMap.get(camKey).name;
+            boolean isBoolPref = camConfigKeyToSharedPrefKeyMap.get(camKey).isBool;
+
+            Log.e(LOGTAG, "Failed to set setting '" + camKey + "' on camera");
+            if (isBoolPref) {
+                edit.putBoolean(sharedprefKey, camValue.equals("1"));
+            } else {
+                edit.putString(sharedprefKey, camValue);
             }
         }
-        return ok;
+        edit.apply();
+
+        return ok && failedKeys.isEmpty();
     }
 
     private void shutdown() {
         shutdown(false, "");
     }
 
-    synchronized private void shutdown(boolean abnormal, String extraMessage) {
+    private void shutdown(boolean abnormal, String extraMessage) {
         String shutdownReason = abnormal
                 ? String.format("Abnormal shutdown: %s", extraMessage)
                 : "Normal shutdown";
+        // not synchronized on the session, handshake phases abort while initSession holds it
+        synchronized (shutdownLock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+
         Log.i(LOGTAG, String.format("Connection shutting down: %s", shutdownReason));
 
         if (!abnormal && state == NetworkInfo.State.CONNECTED)
             fireStateChanged(NetworkInfo.State.DISCONNECTING, shutdownReason);
 
-        previewImageTimer.cancel();
-        periodicTimer.cancel();
+        scheduled.cancel();
 
-        try {
-            if (sock != null)
-                sock.setSoTimeout(500);
-            sendCommand(CameraCommand.Session_Close);
-        } catch (SendMessageException | SocketException ignored) {
-        }
+        ByteSlice pendingImage = encodedPreview.close();
+        if (pendingImage != null)
+            previewBuffers.release(pendingImage.array);
 
         try {
-            if (sock != null)
-                sock.close();
-        } catch (IOException ignored) {
+            if (connection != null)
+                sendCommand(CameraCommand.Session_Close).await(500);
+        } catch (SendMessageException ignored) {
         }
-        sock = null;
-        sock_out = null;
-        sock_in = null;
 
-        // give the cam some time to do whatever it does, directly connecting again sometimes
-        // fails so add a timeout here to prevent that
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException ignored) {
-        }
+        tearDownLink();
+
+        if (snapshotValid)
+            saveSnapshot();
+
+        Log.i(LOGTAG, String.format("Preview rate: %s", previewRate));
+        Log.i(LOGTAG, String.format("Preview metrics: %s", previewMetrics.snapshot().toString().replace('\n', ',')));
+        Log.i(LOGTAG, String.format("Preview bitmaps: %s", bitmapPool));
+        Log.i(LOGTAG, String.format("Preview receive buffers allocated: %d", previewBuffers.getAllocations()));
+        bitmapPool.clear();
+        previewBuffers.clear();
+        releasePreviewHistory();
+
+        if (eventLoop != null)
+            eventLoop.close();
 
         if (abnormal || state == NetworkInfo.State.DISCONNECTING)
             fireStateChanged(NetworkInfo.State.DISCONNECTED, shutdownReason);
@@ -346,30 +599,37 @@ public class X7RemoteSession implements AutoCloseable {
         }
     }
 
-    private void fireNewCamPreviewImageAvailable(Bitmap bmp) {
+    private void fireNotificationReceived(CameraNotification notification) {
         for (X7RemoteSessionListener listener : listeners) {
-            listener.newCamPreviewImageAvailable(bmp);
+            listener.notificationReceived(notification);
+        }
+    }
+
+    private void fireConnectionInterrupted(String reason) {
+        for (X7RemoteSessionListener listener : listeners) {
+            listener.connectionInterrupted(reason);
         }
     }
 
-    private byte[] httpGET(String urlString) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(1000);
-        connection.setReadTimeout(1000);
-        connection.connect();
+    private void fireConnectionResumed(int attempts) {
+        for (X7RemoteSessionListener listener : listeners) {
+            listener.connectionResumed(attempts);
+        }
+    }
 
-        byte[] imageBytes = IOUtils.toByteArray(connection.getInputStream());
+    private void fireNewCamPreviewImageAvailable(Bitmap bmp) {
+        for (X7RemoteSessionListener listener : listeners) {
+            listener.newCamPreviewImageAvailable(bmp);
+        }
+    }
 
-        connection.disconnect();
-        return imageBytes;
-}
+    private byte[] httpGET(String path) throws IOException {
+        return HttpRequest.get(eventLoop, camAddress, camHttpPort, path, 1000);
+    }
 
     @NonNull
     private JSONObject getConfig() throws IOException, JSONException {
-        byte[] content = httpGET(String.format("http://%s/pref/config", CamAddress));
+        byte[] content = httpGET("/pref/config");
         String str = new String(content, StandardCharsets.UTF_8);
         return new JSONObject(str);
     }
@@ -379,15 +639,134 @@ public class X7RemoteSession implements AutoCloseable {
         shutdown(true, why);
     }
 
+    /**
+     * Closes the connection and everything using it, the session itself stays open.
+     */
+    private void tearDownLink() {
+        synchronized (shutdownLock) {
+            ++linkGeneration;
+        }
+        scheduled.cancel();
+
+        MjpegStream stream = previewStream;
+        if (stream != null)
+            stream.close();
+        previewStream = null;
+
+        PreviewHttpClient client = previewClient;
+        if (client != null)
+            client.close();
+        previewClient = null;
+
+        CameraConnection conn = connection;
+        if (conn != null)
+            conn.close();
+        connection = null;
+    }
+
+    private void linkLost(String why) {
+        linkLost(why, linkGeneration);
+    }
+
+    /**
+     * Re-establishes the connection in the background, or closes the session if it never
+     * was established or the reconnect budget is used up.
+     *
+     * @param generation connection the failure happened on, failures of older ones are ignored
+     */
+    private void linkLost(String why, int generation) {
+        if (!established || reconnectPolicy.maxAttempts <= 0) {
+            abort(why);
+            return;
+        }
+
+        synchronized (shutdownLock) {
+            if (closed || reconnecting || generation != linkGeneration)
+                return;
+            reconnecting = true;
+        }
+
+        Log.w(LOGTAG, String.format("Connection lost, reconnecting: %s", why));
+        tearDownLink();
+        fireConnectionInterrupted(why);
+
+        SessionScheduler.get().execute(() -> reconnect(why));
+    }
+
+    private void reconnect(String why) {
+        ReconnectPolicy policy = reconnectPolicy;
+        long deadline = CameraEventLoop.now() + policy.budgetMs;
+
+        for (int attempt = 1; attempt <= policy.maxAttempts && !closed; ++attempt) {
+            try {
+                long remaining = deadline - CameraEventLoop.now();
+                if (remaining <= 0)
+                    break;
+                Thread.sleep(Math.min(policy.backoffMs(attempt), remaining));
+
+                resumeLink();
+                Log.i(LOGTAG, String.format("Connection resumed after %d attempts", attempt));
+                fireConnectionResumed(attempt);
+                return;
+            } catch (IOException | SendMessageException | JSONException e) {
+                Log.w(LOGTAG, String.format("Reconnect attempt %d failed: %s", attempt, e.getMessage()));
+                tearDownLink();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (!closed)
+            abort(String.format("Reconnecting failed (%s): %s", policy, why));
+    }
+
+    /**
+     * Connects, initializes and pairs again and continues where the lost connection stopped.
+     * Settings are still known, only the recording state may have changed in the meantime.
+     */
+    private void resumeLink() throws IOException, SendMessageException, JSONException {
+        // the event loop outlives the connections, only the session's shutdown closes it
+        attachConnection(connect());
+
+        SessionID = initCameraSession();
+        sendCommandWithAssert(CameraCommand.Remote_Pair, 0);
+        Log.i(LOGTAG, String.format("Session ID: %d", SessionID));
+
+        JSONObject config = getConfig();
+        boolean nowRecording = config.optInt("recording_status", recording ? 1 : 0) == 1;
+
+        // the camera may have stopped the secondary stream with the old session
+        boolean previewAvailable = previewSupported && (isCamPreviewOn(config) || enableCamPreview());
+        if (previewSupported && !previewAvailable)
+            Log.w(LOGTAG, "Preview not available anymore after reconnecting");
+
+        synchronized (shutdownLock) {
+            if (closed)
+                throw new IOException("Session closed while reconnecting");
+            // failures of the new connection count from now on
+            reconnecting = false;
+            scheduled = SessionScheduler.get().newGroup("X7RemoteSession");
+        }
+        setupPeriodicTimer();
+        if (previewAvailable)
+            startCamPreviewFetcher();
+
+        if (nowRecording != recording) {
+            recording = nowRecording;
+            fireRecordingStatusChanged(recording);
+        }
+    }
+
     synchronized private void initSession(SharedPreferences sharedPrefs, Resources res) throws ConnectionException, AssertionException {
         fireStateChanged(NetworkInfo.State.CONNECTING, "");
 
         // init socket connection
         try {
-            sock = new Socket();
-            sock.connect(new InetSocketAddress(CamAddress, CamPort), 2000);
-            sock_in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            sock_out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
+            timings.begin(Phase.Connect);
+            eventLoop = new CameraEventLoop();
+            connection = connect();
+            timings.end(Phase.Connect);
 
             Log.i(LOGTAG, "Connection successful");
         } catch(IOException e) {
@@ -398,96 +777,249 @@ public class X7RemoteSession implements AutoCloseable {
 
         // init TCP session
         try {
-            JSONObject answer = sendCommandWithAssert(CameraCommand.Session_Init, 0);
-            SessionID = answer.getJSONArray("param").getInt(0);
-        }  catch (JSONException | SendMessageException e) {
+            timings.begin(Phase.SessionInit);
+            SessionID = initCameraSession();
+            timings.end(Phase.SessionInit);
+        }  catch (IOException | JSONException | SendMessageException e) {
             e.printStackTrace();
             abort(e.getMessage());
             throw new ConnectionException(e.getMessage());
         }
         Log.i(LOGTAG, String.format("Session ID: %d", SessionID));
 
-        // pair with camera
-        try {
-            sendCommandWithAssert(CameraCommand.Remote_Pair, 0);
-        } catch (SendMessageException e) {
-            e.printStackTrace();
-            abort(e.getMessage());
-            throw new ConnectionException(e.getMessage());
-        }
-
-        // Setup keep alive and getting battery and sd card capacity status
-        // Keep alive needs to be sent every 4.5 seconds
-        periodicTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    sendCommandWithAssert(CameraCommand.Keep_Alive, -26);
-                } catch (SendMessageException e) {
-                    e.printStackTrace();
-                    abort(e.getMessage());
-                    periodicTimer.cancel();
-                }
-
-                try {
-                    int batteryLevel = Integer.parseInt(getSetting("battery_level"));
-                    int sdCardCapacity = Integer.parseInt(getSetting("sd_card_capacity"));
-                    fireCamStatusChanged(BatteryLevel.fromValue(batteryLevel), sdCardCapacity);
-                } catch (SendMessageException e) {
-                    e.printStackTrace();
-                    abort(e.getMessage());
-                    periodicTimer.cancel();
-                }
-            }
-        }, 0, 4500);
-
-        // get current recording status
-        try {
-            JSONObject config = getConfig();
-            if (!config.has("recording_status"))
-                throw new ConnectionException("Config doesn't have recording_status?!");
-            recording = config.getInt("recording_status") == 1;
-            Log.i(LOGTAG, String.format("Currently recording: %b", recording));
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
-            abort(e.getMessage());
-            throw new ConnectionException(e.getMessage());
-        }
-
-        // initialize/sync settings
         if (camConfigKeyToSharedPrefKeyMap == null) {
             camConfigKeyToSharedPrefKeyMap = buildKeyMap(res);
         }
-
+        boolean update = sharedPrefs.getBoolean(res.getString(R.string.pref_update), false);
+
+        // Everything else only needs the token: pairing, the config download and the preview
+        // probe run concurrently, the settings sync waits for the config. Writing settings
+        // and probing the preview both use Setting_Change brackets that must not interleave,
+        // so the probe waits for the sync in that case. Snapshots are found by the config, if
+        // there may be one the probe waits for the config as well: a resumed session skips it
+        // if the config says the stream is on.
+        SessionScheduler workers = SessionScheduler.get();
+        Future<JSONObject> configFuture = null;
+        Future<Boolean> previewFuture = null;
         try {
-            boolean update = sharedPrefs.getBoolean(res.getString(R.string.pref_update), false);
+            timings.begin(Phase.Pair);
+            ReplyFuture pair = sendCommand(CameraCommand.Remote_Pair);
+            configFuture = workers.submit(this::fetchConfig);
+            if (!update && !SessionSnapshot.anyStored(sharedPrefs))
+                previewFuture = workers.submit(this::probeCamPreview);
+
+            awaitWithAssert(pair, 0);
+            timings.end(Phase.Pair);
+
+            setupPeriodicTimer();
+
+            // initialize/sync settings
+            JSONObject config = configFuture.get();
+            cameraId = SessionSnapshot.cameraId(config);
+            SessionSnapshot snapshot = SessionSnapshot.load(sharedPrefs, cameraId);
+            boolean previewOn = false;
+            if (snapshot != null && snapshot.matches(config)) {
+                Log.i(LOGTAG, "Camera unchanged since the last session, resuming");
+                // settings the config lacks don't need to be requested again
+                settingsCache.putAll(snapshot.settings);
+                previewStreaming = snapshot.previewStreaming;
+                // the last session had a preview, if the camera doesn't serve it after all
+                // the 404 turns the stream on again
+                previewOn = previewStreaming != null && isCamPreviewOn(config);
+            }
+            if (!update && !previewOn && previewFuture == null)
+                previewFuture = workers.submit(this::probeCamPreview);
+
+            timings.begin(Phase.Settings);
             if (update) {
-                boolean ok = setSettings(sharedPrefs);
+                boolean ok = setSettings(sharedPrefs, config);
                 sharedPrefs.edit().putBoolean(res.getString(R.string.pref_update), false).apply();
                 if (!ok)
                     throw new ConnectionException("Failed to synchronize settings");
             } else {
-                if (!getSettings(sharedPrefs))
+                if (!getSettings(sharedPrefs, config))
                     throw new ConnectionException("Failed to initialize settings");
             }
+            timings.end(Phase.Settings);
+
+            // enable camera preview
+            if (previewOn)
+                previewSupported = true;
+            else
+                previewSupported = previewFuture != null ? previewFuture.get() : probeCamPreview();
+            if (previewSupported)
+                startCamPreview();
         } catch (ConnectionException e) {
             e.printStackTrace();
             abort(e.getMessage());
             throw e;
-        }
-
-        // enable camera preview
-        try {
-            enableCamPreview();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            cause.printStackTrace();
+            abort(cause.getMessage());
+            throw new ConnectionException(cause.getMessage());
         } catch (SendMessageException | JSONException e) {
             e.printStackTrace();
             abort(e.getMessage());
             throw new ConnectionException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort("Interrupted during handshake");
+            throw new ConnectionException("Interrupted during handshake");
+        } finally {
+            // steps still running after a failure are of no use anymore
+            if (configFuture != null)
+                configFuture.cancel(true);
+            if (previewFuture != null)
+                previewFuture.cancel(true);
         }
 
+        timings.finish();
+        Log.i(LOGTAG, String.format("Handshake: %s", timings));
+
+        snapshotValid = true;
+        saveSnapshot();
+
+        established = true;
         fireStateChanged(NetworkInfo.State.CONNECTED, "");
     }
 
+    private void saveSnapshot() {
+        if (cameraId != null)
+            new SessionSnapshot(settingsCache.snapshot(), previewStreaming).save(snapshotPrefs, cameraId);
+    }
+
+    /**
+     * Connecting right after the previous session closed sometimes fails while the camera
+     * still tears it down, the same goes for Wi-Fi that just came up. In that case the
+     * connection is retried as soon as the camera accepts connections again.
+     */
+    private CameraConnection connect() throws IOException {
+        try {
+            return new CameraConnection(eventLoop, camAddress, camPort, 2000, this);
+        } catch (IOException e) {
+            Log.w(LOGTAG, String.format("Camera not ready yet: %s", e.getMessage()));
+            try {
+                if (!new CameraReadinessProbe(camAddress, camPort).awaitReady(ReadyTimeoutMs))
+                    throw e;
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            return new CameraConnection(eventLoop, camAddress, camPort, 2000, this);
+        }
+    }
+
+    private void attachConnection(CameraConnection conn) throws IOException {
+        synchronized (shutdownLock) {
+            if (closed) {
+                conn.close();
+                throw new IOException("Session closed while connecting");
+            }
+            connection = conn;
+        }
+    }
+
+    /**
+     * Starts the camera session on the current connection. Right after power on or the
+     * previous session the camera accepts connections but may still reject Session_Init or
+     * not answer it, so it is retried with a backoff for up to ReadyTimeoutMs. A camera that
+     * didn't answer gets a new connection for the next attempt.
+     *
+     * @return the session token
+     */
+    private int initCameraSession() throws IOException, SendMessageException, JSONException {
+        long deadline = CameraEventLoop.now() + ReadyTimeoutMs;
+        long backoff = 50;
+        startingSession = true;
+        try {
+            for (int attempt = 1; ; ++attempt) {
+                CameraConnection conn = requireConnection();
+                boolean answered = false;
+                String failure;
+                try {
+                    JSONObject answer = conn.request(CameraCommand.Session_Init).await(SessionInitTimeoutMs);
+                    if (answer.optInt("rval", -1) == 0) {
+                        int token = answer.getJSONArray("param").getInt(0);
+                        conn.setToken(token);
+                        if (attempt > 1)
+                            Log.i(LOGTAG, String.format("Session_Init accepted after %d attempts", attempt));
+                        return token;
+                    }
+                    answered = true;
+                    failure = String.format("Session_Init rejected: %s", answer);
+                } catch (SendMessageException e) {
+                    failure = e.getMessage();
+                }
+
+                long remaining = deadline - CameraEventLoop.now();
+                if (remaining <= 0 || closed)
+                    throw new SendMessageException(failure);
+                Log.w(LOGTAG, String.format("%s, retrying", failure));
+
+                try {
+                    Thread.sleep(Math.min(backoff / 2 + (long) (Math.random() * backoff / 2), remaining));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SendMessageException("Interrupted while starting the session");
+                }
+                backoff = Math.min(backoff * 2, 500);
+
+                if (!answered) {
+                    conn.close();
+                    attachConnection(connect());
+                }
+            }
+        } finally {
+            startingSession = false;
+        }
+    }
+
+    /**
+     * Gets current recording status, the config document also holds most of the settings.
+     */
+    private JSONObject fetchConfig() throws IOException, JSONException, ConnectionException {
+        timings.begin(Phase.Config);
+        JSONObject config = getConfig();
+        if (!config.has("recording_status"))
+            throw new ConnectionException("Config doesn't have recording_status?!");
+        recording = config.getInt("recording_status") == 1;
+        Log.i(LOGTAG, String.format("Currently recording: %b", recording));
+        timings.end(Phase.Config);
+        return config;
+    }
+
+    private void setupPeriodicTimer() {
+        // Keep alive needs to be sent every 4.5 seconds, so it only gets a little slack.
+        // Battery and sd card capacity can wait for the next keep alive and share its wakeup.
+        // Scheduling is a no-op if a concurrent handshake phase failed and cancelled the group.
+        SessionScheduler.Group group = scheduled;
+        int generation = linkGeneration;
+        group.scheduleAtFixedRate(() -> {
+            try {
+                awaitWithAssert(sendCommand(CameraCommand.Keep_Alive), -26);
+            } catch (SendMessageException e) {
+                e.printStackTrace();
+                linkLost(e.getMessage(), generation);
+            }
+        }, 0, 4500, 200);
+
+        group.scheduleAtFixedRate(() -> {
+            try {
+                ReplyFuture battery = requestSetting("battery_level");
+                ReplyFuture sdCard = requestSetting("sd_card_capacity");
+
+                batteryLevel = BatteryLevel.fromValue(Integer.parseInt(awaitSetting(battery)));
+                sdCardCapacity = Integer.parseInt(awaitSetting(sdCard));
+                camStatusKnown = true;
+                fireCamStatusChanged(batteryLevel, sdCardCapacity);
+            } catch (SendMessageException e) {
+                e.printStackTrace();
+                linkLost(e.getMessage(), generation);
+            }
+        }, 0, 4500, 1000);
+    }
+
     enum StreamConfigResult
     {
         AlreadyOn,
@@ -498,12 +1030,7 @@ public class X7RemoteSession implements AutoCloseable {
     private StreamConfigResult send_dual_streams_config_first() throws SendMessageException, JSONException {
         sendCommandWithAssert(CameraCommand.Setting_Change_Start, 0);
 
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":6,\"type\":\"dual streams\",\"param\":\"on\",\"param_size\":2}",
-                SessionID
-        );
-        JSONObject answer = sendMessage(payload);
+        JSONObject answer = requestSetSetting("dual streams", "on").await();
 
         if (answer.getInt("rval") == 0 && answer.has("settable") && answer.getString("settable").contains("streaming;off")) {
             sendCommandWithAssert(CameraCommand.Setting_Change_Stop, 0);
@@ -521,12 +1048,7 @@ public class X7RemoteSession implements AutoCloseable {
     private void send_dual_streams_config() throws SendMessageException, JSONException {
         sendCommandWithAssert(CameraCommand.Setting_Change_Start, 0);
 
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":6,\"type\":\"dual streams\",\"param\":\"on\",\"param_size\":2}",
-                SessionID
-        );
-        JSONObject answer = sendMessage(payload);
+        JSONObject answer = requestSetSetting("dual streams", "on").await();
         if (answer.getInt("rval") == 0) {
             sendCommandWithAssert(CameraCommand.Setting_Change_Stop, 0);
         }
@@ -535,192 +1057,329 @@ public class X7RemoteSession implements AutoCloseable {
     private void send_stream_type_config() throws SendMessageException, JSONException {
         sendCommandWithAssert(CameraCommand.Setting_Change_Start, 0);
 
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":6,\"type\":\"stream type\",\"param\":\"mjpg\",\"param_size\":4}",
-                SessionID
-        );
-        JSONObject answer = sendMessage(payload);
+        JSONObject answer = requestSetSetting("stream type", "mjpg").await();
         if (answer.getInt("rval") == 0) {
             sendCommandWithAssert(CameraCommand.Setting_Change_Stop, 0);
         }
     }
 
-    private void enableCamPreview() throws SendMessageException, JSONException {
+    /**
+     * @return whether the config says the secondary stream already runs as MJPEG
+     */
+    private static boolean isCamPreviewOn(JSONObject config) {
+        return "on".equals(config.optString("dual streams")) && "mjpg".equals(config.optString("stream type"));
+    }
+
+    private boolean probeCamPreview() throws SendMessageException, JSONException {
+        timings.begin(Phase.Preview);
+        boolean supported = enableCamPreview();
+        timings.end(Phase.Preview);
+        return supported;
+    }
+
+    /**
+     * Turns the secondary stream on unless it already runs.
+     *
+     * @return false if the camera has no preview
+     */
+    private boolean enableCamPreview() throws SendMessageException, JSONException {
         switch (send_dual_streams_config_first()) {
             case Activated:
                 send_stream_type_config();
                 send_dual_streams_config();
             case AlreadyOn:
-                previewSupported = true;
-                break;
+                return true;
             default:
-                previewSupported = false;
+                return false;
         }
-
-        setupPreviewImageTimer();
     }
 
-    private byte[] getPreviewImage() throws IOException {
-        if (!previewSupported)
-            return new byte[]{};
-
-        try {
-            return httpGET(String.format("http://%s/mjpeg/amba.jpg", CamAddress));
-        } catch (FileNotFoundException | SocketTimeoutException e) {
-            Log.w(LOGTAG, e.toString());
-            return new byte[]{};
-        } catch (IOException e) {
-            e.printStackTrace();
-            abort(e.getMessage());
-            throw e;
-        }
+    /**
+     * Reads the preview from the camera's continuous MJPEG feed if it has one, polling single
+     * images is the fallback. Runs on a scheduler worker so trying the feed doesn't delay the
+     * handshake.
+     *
+     * Fetching and decoding run on separate workers and only hand over the newest image, a
+     * slow decode skips images instead of delaying the next fetch.
+     */
+    private void startCamPreview() {
+        SessionScheduler.get().execute(this::runCamPreviewDecoder);
+
+        startCamPreviewFetcher();
     }
 
-    private void generateCamPreviewImage() {
-        try {
-            byte[] imagebuf = getPreviewImage();
-            if (imagebuf.length == 0)
+    private void allocatePreviewHistory() {
+        synchronized (shutdownLock) {
+            if (closed || !previewSupported || previewHistory != null)
                 return;
-            Bitmap bitmap = BitmapFactory.decodeByteArray(imagebuf, 0, imagebuf.length);
+            // 30 s at the camera's preview rate, or less if the frames are large
+            previewHistory = new PreviewRingBuffer(previewHistoryBytes, 1024, 30 * 1000);
+        }
+    }
 
-            fireNewCamPreviewImageAvailable(bitmap);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * The direct buffer is freed once the GC collects it, a replay still holding on to it
+     * doesn't find its frames anymore.
+     */
+    private void releasePreviewHistory() {
+        PreviewRingBuffer history;
+        synchronized (shutdownLock) {
+            history = previewHistory;
+            previewHistory = null;
         }
+        if (history != null)
+            history.clear();
     }
 
-    private void setupPreviewImageTimer() {
-        int interval = 50;
-        if (isRecording())
-            interval = 200;
-
-        previewImageTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                generateCamPreviewImage();
-            }
-        }, 0, interval);
+    /**
+     * Fetches the preview over the current connection, a new one needs a new fetcher.
+     */
+    private void startCamPreviewFetcher() {
+        int generation = linkGeneration;
+        SessionScheduler.get().execute(() -> runCamPreviewStream(generation, PreviewStreamRetryMinMs));
     }
 
-    private boolean shouldSkipReply(JSONObject reply) throws JSONException {
-        for ( Pair<String, String> skipEntry : tcpRepliesToSkip ) {
-            String key = skipEntry.first;
-            String val = skipEntry.second;
+    private void runCamPreviewDecoder() {
+        try {
+            ByteSlice image;
+            while ((image = encodedPreview.take()) != null) {
+                if (!previewVisible) {
+                    // nobody sees the preview right now, the history still gets the frame
+                    previewBuffers.release(image.array);
+                    continue;
+                }
 
-            if (reply.has(key) && reply.get(key).toString().equals(val))
-                return true;
+                long start = CameraEventLoop.now();
+                Bitmap bitmap = bitmapPool.decode(image.array, image.offset, image.length);
+                // the decoder doesn't keep a reference to the data
+                previewBuffers.release(image.array);
+                long decoded = CameraEventLoop.now();
+                previewRate.frameDecoded(decoded - start);
+                previewMetrics.frameDecoded(image, bitmap, decoded - start);
+                if (bitmap == null || closed)
+                    continue;
+
+                fireNewCamPreviewImageAvailable(bitmap);
+                previewMetrics.frameDelivered(CameraEventLoop.now() - decoded);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return false;
     }
 
-    private JSONObject getNextReply(List<String> replies) throws JSONException {
-        for (Iterator<String> iterator = replies.iterator(); iterator.hasNext();) {
-            String reply = iterator.next();
-            JSONObject jsonReply = new JSONObject(reply);
+    /**
+     * A stream that breaks off is opened again after retryMs, polling single images is only
+     * the fallback for cameras that don't stream at all.
+     */
+    private void runCamPreviewStream(int generation, long retryMs) {
+        MjpegStream stream = null;
+        try {
+            // the last session already found out that the camera doesn't stream
+            if (!Boolean.FALSE.equals(previewStreaming))
+                stream = MjpegStream.open(eventLoop, camAddress, camHttpPort, PreviewPath, 1000, previewBuffers);
+            if (stream == null) {
+                Log.i(LOGTAG, "Camera serves single preview images, polling");
+                previewStreamingKnown(false);
+            }
+        } catch (IOException e) {
+            if (closed || generation != linkGeneration)
+                return;
+            Log.w(LOGTAG, String.format("Preview stream unavailable, polling: %s", e));
+        }
+
+        if (stream == null) {
+            synchronized (shutdownLock) {
+                if (closed || generation != linkGeneration)
+                    return;
+                previewClient = new PreviewHttpClient(eventLoop, camAddress, camHttpPort, PreviewPath, 1000, 2, previewBuffers);
+            }
+            setupPreviewImageTimer();
+            return;
+        }
 
-            if (shouldSkipReply(jsonReply)) {
-                iterator.remove();
-            } else {
-                return jsonReply;
+        Log.i(LOGTAG, "Reading the camera preview stream");
+        previewStreamingKnown(true);
+        synchronized (shutdownLock) {
+            if (closed || generation != linkGeneration) {
+                stream.close();
+                return;
             }
+            previewStream = stream;
         }
 
-        return null;
+        try {
+            int dropped = 0;
+            while (!closed && generation == linkGeneration) {
+                ByteSlice image = stream.awaitFrame();
+                retryMs = PreviewStreamRetryMinMs;
+                previewMetrics.frameReceived(image, -1);
+                previewMetrics.framesDropped(stream.getDroppedFrames() - dropped);
+                dropped = stream.getDroppedFrames();
+                publishCamPreviewImage(image);
+            }
+        } catch (IOException e) {
+            Log.i(LOGTAG, String.format("Preview stream dropped %d images", stream.getDroppedFrames()));
+            stream.close();
+            synchronized (shutdownLock) {
+                if (previewStream == stream)
+                    previewStream = null;
+                if (closed || generation != linkGeneration)
+                    return;
+            }
+
+            // the scheduled reopen goes away with the connection
+            long nextRetryMs = Math.min(2 * retryMs, PreviewStreamRetryMaxMs);
+            Log.w(LOGTAG, String.format("Preview stream broke off, reopening in %d ms: %s", retryMs, e));
+            scheduled.schedule(() -> runCamPreviewStream(generation, nextRetryMs), retryMs, retryMs / 4);
+        }
     }
 
-    synchronized private JSONObject sendMessage(String payload) throws SendMessageException {
-        return sendMessage(payload, ReplyMode.Read);
+    /**
+     * A resumed session only skips turning the preview on if the snapshot knows how the
+     * camera serves it, so the snapshot is updated right away.
+     */
+    private void previewStreamingKnown(boolean streaming) {
+        Boolean known = previewStreaming;
+        previewStreaming = streaming;
+        if (snapshotValid && (known == null || known != streaming))
+            saveSnapshot();
     }
 
-    synchronized private JSONObject sendMessage(String payload, ReplyMode replyMode) throws SendMessageException {
-        if (sock == null)
-            throw new SendMessageException("Socket does not exist");
+    /**
+     * @return the next image or null if there is none right now
+     */
+    private ByteSlice getPreviewImage(PreviewHttpClient client) throws IOException {
+        if (!previewSupported || client == null)
+            return null;
 
         try {
-            Log.d(LOGTAG + LOGTAGNETWORK, String.format("TCP RQ: %s", payload));
-            sock_out.write(payload);
-            sock_out.flush();
+            return client.get(previewRate.getIntervalMs());
+        } catch (FileNotFoundException e) {
+            Log.w(LOGTAG, e.toString());
+            previewNotServed();
+            return null;
+        } catch (SocketTimeoutException e) {
+            Log.w(LOGTAG, e.toString());
+            return null;
+        } catch (IOException e) {
+            // pending frames fail when the session shuts down or the connection was replaced
+            if (closed || client != previewClient)
+                return null;
+            e.printStackTrace();
+            linkLost(e.getMessage());
+            throw e;
+        }
+    }
 
-            while (replyMode == ReplyMode.Read) {
-                char[] buf = new char[65556];
-                int bytes_read = sock_in.read(buf);
-                String replyStr = String.valueOf(buf, 0, bytes_read-1);
+    /**
+     * The camera answers 404 while its secondary stream doesn't run, e.g. after it was
+     * restarted with its own button. Turns the stream on again, once per connection.
+     */
+    private void previewNotServed() {
+        int generation = linkGeneration;
+        synchronized (shutdownLock) {
+            if (closed || previewReenabled == generation)
+                return;
+            previewReenabled = generation;
+        }
 
-                Log.d(LOGTAG + LOGTAGNETWORK, String.format("TCP RP: %s", replyStr));
+        scheduled.schedule(() -> {
+            Log.i(LOGTAG, "Camera doesn't serve the preview, turning it on again");
+            // Setting_Change brackets of settings changes must not interleave
+            synchronized (this) {
+                try {
+                    if (!enableCamPreview())
+                        Log.w(LOGTAG, "Camera refused to turn the preview on");
+                } catch (SendMessageException | JSONException e) {
+                    Log.w(LOGTAG, String.format("Turning the preview on failed: %s", e.getMessage()));
+                }
+            }
+        }, 0, 0);
+    }
 
-                // reply can have multiple answers,
-                // first remove any answers to skip and then check if there is on
-                // valid answer left. If there is none left, try read from the socket again
+    private void generateCamPreviewImage() {
+        PreviewHttpClient client = previewClient;
+        try {
+            long start = CameraEventLoop.now();
+            ByteSlice image = getPreviewImage(client);
+            if (image == null || image.length == 0) {
+                previewRate.frameFailed();
+                previewMetrics.frameFailed();
+                return;
+            }
 
-                List<String> replies = new ArrayList<>(Arrays.asList(replyStr.split("\0")));
+            previewRate.frameFetched(client.getLastRoundTripMs());
+            previewMetrics.frameReceived(image, CameraEventLoop.now() - start);
+            publishCamPreviewImage(image);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                JSONObject nextReply = getNextReply(replies);
-                if (nextReply == null) {
-                    // everything skipped, read from socket again
-                    continue;
-                }
+    private void publishCamPreviewImage(ByteSlice image) {
+        PreviewRingBuffer history = previewHistory;
+        if (history != null)
+            history.append(image.array, image.offset, image.length, CameraEventLoop.now());
 
-                if (replies.size() > 1)
-                    throw new SendMessageException("Too much replies left over!");
+        ByteSlice skipped = encodedPreview.put(image);
+        if (skipped != null) {
+            if (skipped != image)
+                previewMetrics.framesDropped(1);
+            previewBuffers.release(skipped.array);
+        }
+    }
 
-                return nextReply;
-            }
+    private void setupPreviewImageTimer() {
+        schedulePreviewImage(scheduled, 0);
+    }
 
-            return null;
-        } catch (IOException | JSONException e) {
-            Log.e(LOGTAG + LOGTAGNETWORK, e.getMessage());
-            throw new SendMessageException(e.getMessage());
-        }
+    /**
+     * Frames are fetched one at a time, the next one is scheduled once the current one was
+     * decoded, with a delay from {@link PreviewRateController}.
+     */
+    private void schedulePreviewImage(SessionScheduler.Group group, long delayMs) {
+        group.schedule(() -> {
+            long start = CameraEventLoop.now();
+            generateCamPreviewImage();
+            schedulePreviewImage(group, previewRate.nextDelayMs(CameraEventLoop.now() - start, isRecording()));
+        }, delayMs, Math.min(delayMs / 10, 20));
+    }
+
+    private CameraConnection requireConnection() throws SendMessageException {
+        CameraConnection conn = connection;
+        if (conn == null)
+            throw new SendMessageException("Socket does not exist");
+        return conn;
     }
 
-    private JSONObject sendMessageWithAssert(String payload, int expectedReturnValue) throws SendMessageException {
-        JSONObject answer = sendMessage(payload);
+    private JSONObject awaitWithAssert(ReplyFuture reply, int expectedReturnValue) throws SendMessageException {
+        JSONObject answer = reply.await();
         try {
-            if (!answer.has("rval") || Integer.parseInt(answer.getString("rval")) != expectedReturnValue)
+            if (!answer.has("rval") || answer.getInt("rval") != expectedReturnValue)
                 throw new AssertionException("Return value missing or does not match!");
         } catch (JSONException | AssertionException e) {
             e.printStackTrace();
-            abort(e.getMessage());
+            linkLost(e.getMessage());
             throw new SendMessageException(e.getMessage());
         }
         return answer;
     }
 
     private JSONObject sendCommandWithAssert(CameraCommand command, int expectedReturnValue) throws SendMessageException {
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":%d,\"param_size\":0}",
-                SessionID,
-                command.getId()
-        );
-        return sendMessageWithAssert(payload, expectedReturnValue);
+        return awaitWithAssert(sendCommand(command), expectedReturnValue);
     }
 
-    private void sendCommand(CameraCommand command, ReplyMode replyMode) throws SendMessageException {
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":%d,\"param_size\":0}",
-                SessionID,
-                command.getId()
-        );
-        sendMessage(payload, replyMode);
+    private ReplyFuture sendCommand(CameraCommand command) throws SendMessageException {
+        return requireConnection().request(command);
     }
 
-    private void sendCommand(CameraCommand command) throws SendMessageException {
-        sendCommand(command, ReplyMode.Read);
+    private ReplyFuture requestSetting(String key) throws SendMessageException {
+        // TCP RQ: {"token":12,"msg_id":7,"type":"sd_card_capacity","param_size":0} -> TCP RP: { "rval": 0, "param_size": 2, "param": "40" }
+        return requireConnection().requestGetSetting(key);
     }
 
-    private String getSetting(String key) throws SendMessageException {
-        // TCP RQ: {"token":12,"msg_id":7,"type":"sd_card_capacity","param_size":0} -> TCP RP: { "rval": 0, "param_size": 2, "param": "40" }
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":%d,\"type\":\"%s\",\"param_size\":0}",
-                SessionID,
-                CameraCommand.Get_Setting.getId(),
-                key
-        );
-        JSONObject answer = sendMessageWithAssert(payload, 0);
+    private String awaitSetting(ReplyFuture reply) throws SendMessageException {
+        JSONObject answer = awaitWithAssert(reply, 0);
         try {
             if (!answer.has("param"))
                 throw new AssertionException("Config value was not changed!");
@@ -731,28 +1390,42 @@ public class X7RemoteSession implements AutoCloseable {
         }
     }
 
-    private void setSetting(String key, String value) throws SendMessageException {
+    private ReplyFuture requestSetSetting(String key, String value) throws SendMessageException {
+        return requireConnection().requestSetSetting(key, value);
+    }
+
+    /**
+     * Changes all given settings in a single Setting_Change_Start/Stop transaction.
+     *
+     * @param changes camera key -> new camera value
+     * @return keys the camera did not accept
+     */
+    private List<String> applySettings(Map<String, String> changes) throws SendMessageException {
         sendCommandWithAssert(CameraCommand.Setting_Change_Start, 0);
 
-        String payload = String.format(
-                Locale.US,
-                "{\"token\":%d,\"msg_id\":%d,\"type\":\"%s\",\"param\":\"%s\",\"param_size\":%d}",
-                SessionID,
-                CameraCommand.Set_Setting.getId(),
-                key,
-                value,
-                value.length()
-        );
-        JSONObject answer = sendMessageWithAssert(payload, 0);
-        try {
-            if (!answer.has("param") || !answer.getString("param").equals(value))
-                throw new AssertionException("Config value was not changed!");
-        } catch (JSONException | AssertionException e) {
-            e.printStackTrace();
-            throw new SendMessageException(e.getMessage());
+        Map<String, ReplyFuture> requests = new LinkedHashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            requests.put(change.getKey(), requestSetSetting(change.getKey(), change.getValue()));
+        }
+
+        List<String> failedKeys = new ArrayList<>();
+        for (Map.Entry<String, ReplyFuture> request : requests.entrySet()) {
+            String key = request.getKey();
+            String value = changes.get(key);
+
+            JSONObject answer = awaitWithAssert(request.getValue(), 0);
+            try {
+                if (!answer.has("param") || !answer.getString("param").equals(value))
+                    throw new AssertionException("Config value was not changed!");
+                settingsCache.put(key, value);
+            } catch (JSONException | AssertionException e) {
+                e.printStackTrace();
+                failedKeys.add(key);
+            }
         }
 
         sendCommandWithAssert(CameraCommand.Setting_Change_Stop, 0);
+        return failedKeys;
     }
     //endregion
 }
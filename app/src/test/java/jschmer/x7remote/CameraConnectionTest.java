@@ -0,0 +1,181 @@
+package jschmer.x7remote;
+
+import jschmer.x7remote.protocol.CameraCommand;
+import jschmer.x7remote.protocol.CameraNotification;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Reply matching of the control connection against a scripted camera that answers exactly
+ * the way a test tells it to.
+ */
+public class CameraConnectionTest {
+    private ServerSocket server;
+    private CameraEventLoop loop;
+    private CameraConnection connection;
+    private Socket camera;
+    private final BlockingQueue<CameraNotification> notifications = new ArrayBlockingQueue<>(16);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        loop = new CameraEventLoop();
+        connection = new CameraConnection(loop, "127.0.0.1", server.getLocalPort(), 1000, new CameraConnectionListener() {
+            @Override
+            public void connectionLost(String reason) {
+            }
+
+            @Override
+            public void notificationReceived(CameraNotification notification) {
+                notifications.add(notification);
+            }
+        });
+        connection.setToken(1);
+        camera = server.accept();
+        camera.setTcpNoDelay(true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.close();
+        loop.close();
+        camera.close();
+        server.close();
+    }
+
+    /**
+     * Reads the given number of requests, they aren't delimited and don't nest objects.
+     */
+    private void awaitRequests(int count) throws IOException {
+        InputStream in = camera.getInputStream();
+        while (count > 0) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Connection closed");
+            if (b == '}')
+                --count;
+        }
+    }
+
+    private void reply(String... replies) throws IOException {
+        OutputStream out = camera.getOutputStream();
+        for (String reply : replies) {
+            out.write(reply.getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+        }
+        out.flush();
+    }
+
+    private void replySplit(String reply) throws IOException, InterruptedException {
+        OutputStream out = camera.getOutputStream();
+        byte[] frame = (reply + "\0").getBytes(StandardCharsets.UTF_8);
+        for (byte b : frame) {
+            out.write(b);
+            out.flush();
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertFails(ReplyFuture future) {
+        try {
+            future.await(1000);
+            fail("Expected " + future + " to fail");
+        } catch (SendMessageException expected) {
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsGetTheirReplies() throws Exception {
+        ReplyFuture keepAlive = connection.request(CameraCommand.Keep_Alive);
+        ReplyFuture setting = connection.requestSetSetting("dual streams", "on");
+        ReplyFuture pair = connection.request(CameraCommand.Remote_Pair);
+        awaitRequests(3);
+        reply(
+                "{\"rval\":-26,\"msg_id\":64}",
+                "{\"rval\":0,\"msg_id\":6,\"type\":\"dual streams\",\"param\":\"on\"}",
+                "{\"rval\":0,\"msg_id\":8}"
+        );
+
+        assertEquals(8, pair.await(1000).getInt("msg_id"));
+        assertEquals("on", setting.await(1000).getString("param"));
+        assertEquals(-26, keepAlive.await(1000).getInt("rval"));
+    }
+
+    @Test
+    public void replyWithoutMsgIdAnswersTheGetSetting() throws Exception {
+        ReplyFuture setting = connection.requestSetSetting("video_resolution", "3");
+        ReplyFuture battery = connection.requestGetSetting("battery_level");
+        awaitRequests(2);
+        // the camera skipped the Set_Setting, the id-less reply must not be taken for it
+        reply("{\"rval\":0,\"param_size\":1,\"param\":\"3\"}");
+
+        assertEquals("3", battery.await(1000).getString("param"));
+        assertFails(setting);
+    }
+
+    @Test
+    public void requestsOlderThanTheAnsweredOneFail() throws Exception {
+        ReplyFuture keepAlive = connection.request(CameraCommand.Keep_Alive);
+        ReplyFuture sdCard = connection.requestGetSetting("sd_card_capacity");
+        ReplyFuture pair = connection.request(CameraCommand.Remote_Pair);
+        ReplyFuture later = connection.requestGetSetting("battery_level");
+        awaitRequests(4);
+        reply("{\"rval\":0,\"msg_id\":8}");
+
+        assertEquals(0, pair.await(1000).getInt("rval"));
+        assertFails(keepAlive);
+        assertFails(sdCard);
+
+        // the request after the answered one is still pending and gets the next reply
+        reply("{\"rval\":0,\"param\":\"4\"}");
+        assertEquals("4", later.await(1000).getString("param"));
+    }
+
+    @Test
+    public void notificationsAreNotTakenAsReplies() throws Exception {
+        ReplyFuture battery = connection.requestGetSetting("battery_level");
+        awaitRequests(1);
+        reply(
+                "{\"msg_id\":16777217,\"type\":\"battery\",\"param\":\"2\"}",
+                "{\"rval\":0,\"param\":\"2\"}"
+        );
+
+        JSONObject reply = battery.await(1000);
+        assertEquals("2", reply.getString("param"));
+        CameraNotification notification = notifications.poll(1, TimeUnit.SECONDS);
+        assertNotNull(notification);
+        assertEquals(CameraNotification.Type.BatteryChanged, notification.type);
+    }
+
+    @Test
+    public void splitAndCoalescedReplies() throws Exception {
+        ReplyFuture first = connection.request(CameraCommand.Keep_Alive);
+        ReplyFuture second = connection.requestGetSetting("sd_card_capacity");
+        ReplyFuture third = connection.request(CameraCommand.Keep_Alive);
+        awaitRequests(3);
+
+        replySplit("{\"rval\":-26,\"msg_id\":64}");
+        reply("{\"rval\":0,\"param\":\"40\"}", "{\"rval\":-26,\"msg_id\":64}");
+
+        assertEquals(-26, first.await(1000).getInt("rval"));
+        assertEquals("40", second.await(1000).getString("param"));
+        assertEquals(-26, third.await(1000).getInt("rval"));
+    }
+}
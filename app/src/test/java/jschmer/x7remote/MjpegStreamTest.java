@@ -0,0 +1,80 @@
+package jschmer.x7remote;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+import jschmer.x7remote.simulator.SimulatorConfig;
+import jschmer.x7remote.simulator.X7Simulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The continuous preview feed from the simulator's HTTP server.
+ */
+public class MjpegStreamTest {
+    private final ReceiveBufferPool buffers = new ReceiveBufferPool(4);
+    private CameraEventLoop loop;
+    private X7Simulator simulator;
+    private MjpegStream stream;
+
+    @Before
+    public void setUp() throws IOException {
+        loop = new CameraEventLoop();
+    }
+
+    @After
+    public void tearDown() {
+        if (stream != null)
+            stream.close();
+        if (simulator != null)
+            simulator.close();
+        loop.close();
+    }
+
+    private MjpegStream open(SimulatorConfig config) throws IOException {
+        config.dualStreamsOn = true;
+        simulator = new X7Simulator(config);
+        return MjpegStream.open(loop, "127.0.0.1", simulator.getHttpPort(), X7RemoteSession.PreviewPath, 1000, buffers);
+    }
+
+    private void assertFrames(int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            ByteSlice frame = stream.awaitFrame();
+            PreviewHttpClientTest.assertJpeg(frame);
+            buffers.release(frame.array);
+        }
+    }
+
+    @Test
+    public void partsWithLength() throws IOException {
+        SimulatorConfig config = Simulators.config();
+        config.mjpegStreamFps = 50;
+        stream = open(config);
+
+        assertNotNull(stream);
+        assertFrames(10);
+    }
+
+    @Test
+    public void partsWithoutLength() throws IOException {
+        SimulatorConfig config = Simulators.config();
+        config.mjpegStreamFps = 50;
+        config.mjpegStreamNoLength = true;
+        stream = open(config);
+
+        assertNotNull(stream);
+        assertFrames(10);
+    }
+
+    @Test
+    public void singleImageIsNoStream() throws IOException {
+        stream = open(Simulators.config());
+        assertNull(stream);
+    }
+}
@@ -0,0 +1,90 @@
+package jschmer.x7remote;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+import jschmer.x7remote.simulator.SimulatorConfig;
+import jschmer.x7remote.simulator.X7Simulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Polled preview images from the simulator's HTTP server.
+ */
+public class PreviewHttpClientTest {
+    private final ReceiveBufferPool buffers = new ReceiveBufferPool(4);
+    private CameraEventLoop loop;
+    private X7Simulator simulator;
+    private PreviewHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        loop = new CameraEventLoop();
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null)
+            client.close();
+        if (simulator != null)
+            simulator.close();
+        loop.close();
+    }
+
+    private void start(SimulatorConfig config) throws IOException {
+        simulator = new X7Simulator(config);
+        client = new PreviewHttpClient(loop, "127.0.0.1", simulator.getHttpPort(), X7RemoteSession.PreviewPath, 1000, 2, buffers);
+    }
+
+    static void assertJpeg(ByteSlice frame) {
+        assertTrue(frame.length > 4);
+        assertEquals((byte) 0xFF, frame.array[frame.offset]);
+        assertEquals((byte) 0xD8, frame.array[frame.offset + 1]);
+        assertEquals((byte) 0xFF, frame.array[frame.offset + frame.length - 2]);
+        assertEquals((byte) 0xD9, frame.array[frame.offset + frame.length - 1]);
+    }
+
+    @Test
+    public void framesAreWholeImages() throws IOException {
+        SimulatorConfig config = Simulators.config();
+        config.dualStreamsOn = true;
+        start(config);
+
+        for (int i = 0; i < 10; ++i) {
+            ByteSlice frame = client.get(1000);
+            assertJpeg(frame);
+            buffers.release(frame.array);
+        }
+        assertTrue(client.getLastRoundTripMs() >= 0);
+    }
+
+    @Test
+    public void pipelinedFramesStayInOrder() throws IOException {
+        SimulatorConfig config = Simulators.config();
+        config.dualStreamsOn = true;
+        config.httpLatencyMs = 10;
+        start(config);
+
+        // asking faster than a round trip keeps a second request in flight
+        for (int i = 0; i < 20; ++i) {
+            ByteSlice frame = client.get(0);
+            assertJpeg(frame);
+            buffers.release(frame.array);
+        }
+        // the reused buffers need not be allocated again
+        assertTrue(buffers.getAllocations() < 20);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void previewIsNotServedWithoutDualStreams() throws IOException {
+        start(Simulators.config());
+        client.get(1000);
+    }
+}
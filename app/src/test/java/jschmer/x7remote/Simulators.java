@@ -0,0 +1,21 @@
+package jschmer.x7remote;
+
+import jschmer.x7remote.simulator.SimulatorConfig;
+
+/**
+ * Simulator settings shared by the tests.
+ */
+class Simulators {
+    /**
+     * @return quiet simulator on free ports with small preview images, which render quickly
+     */
+    static SimulatorConfig config() {
+        SimulatorConfig config = new SimulatorConfig();
+        config.controlPort = 0;
+        config.httpPort = 0;
+        config.previewWidth = 160;
+        config.previewHeight = 90;
+        config.quiet = true;
+        return config;
+    }
+}
@@ -0,0 +1,155 @@
+package jschmer.x7remote;
+
+import jschmer.x7remote.protocol.ByteSlice;
+import jschmer.x7remote.protocol.ReceiveBufferPool;
+import jschmer.x7remote.simulator.SimulatorConfig;
+import jschmer.x7remote.simulator.X7Simulator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Connect time and preview throughput of the session and its transport classes against the
+ * simulator, with and without link latency. Results are printed, nothing is asserted.
+ *
+ * Not part of the regular test run, enable it with
+ * {@code gradlew :app:testDebugUnitTest --tests jschmer.x7remote.TransportBenchmark -Pbenchmark}.
+ */
+public class TransportBenchmark {
+    private static final int[] LATENCIES_MS = {0, 20};
+    private static final int HANDSHAKES = 20;
+    private static final long PREVIEW_RUN_MS = 3000;
+
+    @BeforeClass
+    public static void enabled() {
+        assumeTrue(Boolean.getBoolean("x7remote.benchmark"));
+    }
+
+    @Test
+    public void connectTime() throws Exception {
+        for (int latency : LATENCIES_MS) {
+            SimulatorConfig config = Simulators.config();
+            config.replyLatencyMs = latency;
+            config.httpLatencyMs = latency;
+            try (X7Simulator simulator = new X7Simulator(config)) {
+                handshakes("cold", latency, simulator, false);
+                handshakes("resumed", latency, simulator, true);
+            }
+        }
+    }
+
+    @Test
+    public void polledPreview() throws Exception {
+        for (int latency : LATENCIES_MS) {
+            SimulatorConfig config = previewConfig();
+            config.httpLatencyMs = latency;
+            ReceiveBufferPool buffers = new ReceiveBufferPool(4);
+            try (X7Simulator simulator = new X7Simulator(config);
+                 CameraEventLoop loop = new CameraEventLoop();
+                 PreviewHttpClient client = new PreviewHttpClient(loop, "127.0.0.1", simulator.getHttpPort(), X7RemoteSession.PreviewPath, 1000, 2, buffers)) {
+                // back to back, pipelined once a round trip was measured
+                Throughput throughput = new Throughput();
+                while (!throughput.done()) {
+                    ByteSlice frame = client.get(0);
+                    throughput.frame(frame.length);
+                    buffers.release(frame.array);
+                }
+                throughput.report("polled", latency, buffers);
+            }
+        }
+    }
+
+    @Test
+    public void streamedPreview() throws Exception {
+        for (boolean withLength : new boolean[]{true, false}) {
+            SimulatorConfig config = previewConfig();
+            // as fast as the simulator writes
+            config.mjpegStreamFps = 1000;
+            config.mjpegStreamNoLength = !withLength;
+            ReceiveBufferPool buffers = new ReceiveBufferPool(4);
+            try (X7Simulator simulator = new X7Simulator(config);
+                 CameraEventLoop loop = new CameraEventLoop();
+                 MjpegStream stream = MjpegStream.open(loop, "127.0.0.1", simulator.getHttpPort(), X7RemoteSession.PreviewPath, 1000, buffers)) {
+                if (stream == null)
+                    throw new IOException("Simulator doesn't stream");
+
+                Throughput throughput = new Throughput();
+                while (!throughput.done()) {
+                    ByteSlice frame = stream.awaitFrame();
+                    throughput.frame(frame.length);
+                    buffers.release(frame.array);
+                }
+                throughput.report(withLength ? "streamed" : "streamed, no length", 0, buffers);
+                System.out.println(String.format(Locale.US, "  %d frames replaced before they were taken", stream.getDroppedFrames()));
+            }
+        }
+    }
+
+    private static SimulatorConfig previewConfig() {
+        SimulatorConfig config = Simulators.config();
+        config.dualStreamsOn = true;
+        // the camera's preview size
+        config.previewWidth = 640;
+        config.previewHeight = 360;
+        return config;
+    }
+
+    /**
+     * Connects one session to warm up and, if resuming, leave a snapshot to resume from,
+     * then reports the handshakes of the following ones.
+     */
+    private static void handshakes(String name, int latency, X7Simulator simulator, boolean resume) throws Exception {
+        MemorySharedPreferences prefs = new MemorySharedPreferences();
+        KeyResources res = new KeyResources();
+        long[] totals = new long[HANDSHAKES];
+        String last = null;
+        for (int i = -1; i < HANDSHAKES; ++i) {
+            if (!resume)
+                prefs = new MemorySharedPreferences();
+            try (X7RemoteSession session = new X7RemoteSession(prefs, res, "127.0.0.1", simulator.getControlPort(), simulator.getHttpPort())) {
+                if (i < 0)
+                    continue;
+                totals[i] = session.getHandshakeTimings().getTotalMs();
+                last = session.getHandshakeTimings().toString();
+            }
+        }
+
+        Arrays.sort(totals);
+        System.out.println(String.format(
+                Locale.US,
+                "handshake %-8s latency %2d ms: median %d ms, p90 %d ms",
+                name, latency, totals[HANDSHAKES / 2], totals[HANDSHAKES * 9 / 10]
+        ));
+        System.out.println("  " + last);
+    }
+
+    private static class Throughput {
+        private final long start = CameraEventLoop.now();
+        private long frames = 0;
+        private long bytes = 0;
+
+        boolean done() {
+            return CameraEventLoop.now() - start >= PREVIEW_RUN_MS;
+        }
+
+        void frame(int length) {
+            ++frames;
+            bytes += length;
+        }
+
+        void report(String name, int latency, ReceiveBufferPool buffers) {
+            double seconds = (CameraEventLoop.now() - start) / 1000.0;
+            System.out.println(String.format(
+                    Locale.US,
+                    "preview %-19s latency %2d ms: %.1f frames/s, %.2f MB/s, %d buffers allocated",
+                    name, latency, frames / seconds, bytes / seconds / 1e6, buffers.getAllocations()
+            ));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package jschmer.x7remote;
+
+import android.graphics.Bitmap;
+import android.net.NetworkInfo;
+
+import jschmer.x7remote.protocol.BatteryLevel;
+import jschmer.x7remote.protocol.CameraNotification;
+import jschmer.x7remote.simulator.SimulatorConfig;
+import jschmer.x7remote.simulator.X7Simulator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The whole session against the simulator: handshake, settings sync, notifications,
+ * preview and reconnecting.
+ */
+public class X7RemoteSessionTest {
+    private final MemorySharedPreferences prefs = new MemorySharedPreferences();
+    private final KeyResources res = new KeyResources();
+    private X7Simulator simulator;
+    private X7RemoteSession session;
+
+    private static class Events implements X7RemoteSessionListener {
+        final CountDownLatch recordingStarted = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch resumed = new CountDownLatch(1);
+
+        @Override
+        public void stateChanged(NetworkInfo.State newstate, String reason) {
+        }
+
+        @Override
+        public void recordingStatusChanged(boolean recording) {
+            if (recording)
+                recordingStarted.countDown();
+        }
+
+        @Override
+        public void generalInfoChanged(BatteryLevel level, int sdCardCapacity) {
+        }
+
+        @Override
+        public void newCamPreviewImageAvailable(Bitmap bmp) {
+        }
+
+        @Override
+        public void notificationReceived(CameraNotification notification) {
+        }
+
+        @Override
+        public void connectionInterrupted(String reason) {
+            interrupted.countDown();
+        }
+
+        @Override
+        public void connectionResumed(int attempts) {
+            resumed.countDown();
+        }
+    }
+
+    private X7RemoteSession connect() throws Exception {
+        return new X7RemoteSession(prefs, res, "127.0.0.1", simulator.getControlPort(), simulator.getHttpPort());
+    }
+
+    private void awaitPreviewFrames(int frames) throws InterruptedException {
+        long deadline = CameraEventLoop.now() + 5000;
+        while (session.getPreviewMetrics().received < frames && CameraEventLoop.now() < deadline)
+            Thread.sleep(50);
+        assertTrue(session.getPreviewMetrics().received >= frames);
+    }
+
+    @After
+    public void tearDown() {
+        if (session != null)
+            session.close();
+        if (simulator != null)
+            simulator.close();
+    }
+
+    @Test
+    public void handshakeReadsTheCameraSettings() throws Exception {
+        simulator = new X7Simulator(Simulators.config());
+        session = connect();
+
+        assertFalse(session.isClosed());
+        assertTrue(session.isPreviewSupported());
+        assertTrue(session.getHandshakeTimings().getTotalMs() >= 0);
+        // the simulator's mic volume is 2 and its buzzer is on
+        assertEquals("2", prefs.getString(res.getString(R.string.pref_system_mic_volume_key), null));
+        assertTrue(prefs.getBoolean(res.getString(R.string.pref_system_buzzer_key), false));
+    }
+
+    @Test
+    public void previewFramesArrive() throws Exception {
+        simulator = new X7Simulator(Simulators.config());
+        session = connect();
+
+        awaitPreviewFrames(5);
+    }
+
+    @Test
+    public void resumedSessionSkipsThePreviewProbe() throws Exception {
+        simulator = new X7Simulator(Simulators.config());
+        session = connect();
+        awaitPreviewFrames(1);
+        session.close();
+
+        session = connect();
+        for (HandshakeTimings.Span span : session.getHandshakeTimings().getSpans())
+            assertNotEquals(HandshakeTimings.Phase.Preview, span.phase);
+        assertTrue(session.isPreviewSupported());
+        awaitPreviewFrames(1);
+    }
+
+    @Test
+    public void brokenPreviewStreamIsReopened() throws Exception {
+        SimulatorConfig config = Simulators.config();
+        config.mjpegStreamFps = 100;
+        config.mjpegStreamBreakAfter = 5;
+        simulator = new X7Simulator(config);
+        session = connect();
+
+        awaitPreviewFrames(20);
+        assertTrue(simulator.getPreviewStreamsOpened() >= 4);
+    }
+
+    @Test
+    public void pushedRecordingStartReachesTheListener() throws Exception {
+        simulator = new X7Simulator(Simulators.config());
+        session = connect();
+        Events events = new Events();
+        session.addListener(events);
+
+        simulator.pushNotification("start_video_record");
+        assertTrue(events.recordingStarted.await(2, TimeUnit.SECONDS));
+        assertTrue(session.isRecording());
+    }
+
+    @Test
+    public void lostConnectionIsResumed() throws Exception {
+        // the restarted simulator has to come back on the same ports
+        SimulatorConfig config = Simulators.config();
+        try (ServerSocket control = new ServerSocket(0); ServerSocket http = new ServerSocket(0)) {
+            config.controlPort = control.getLocalPort();
+            config.httpPort = http.getLocalPort();
+        }
+        simulator = new X7Simulator(config);
+        session = connect();
+        Events events = new Events();
+        session.addListener(events);
+
+        simulator.close();
+        assertTrue(events.interrupted.await(5, TimeUnit.SECONDS));
+        simulator = restart(config);
+
+        assertTrue(events.resumed.await(10, TimeUnit.SECONDS));
+        assertFalse(session.isClosed());
+    }
+
+    private static X7Simulator restart(SimulatorConfig config) throws Exception {
+        // the old sockets may linger for a moment
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return new X7Simulator(config);
+            } catch (IOException e) {
+                if (attempt >= 20)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
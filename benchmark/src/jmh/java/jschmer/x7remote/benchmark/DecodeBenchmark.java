@@ -0,0 +1,93 @@
+package jschmer.x7remote.benchmark;
+
+import jschmer.x7remote.protocol.CameraNotification;
+import jschmer.x7remote.protocol.ReplyFrameDecoder;
+import jschmer.x7remote.protocol.ReplyMatcher;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reply decoding as done by the connection: NUL framing, JSON parsing and matching the
+ * reply to its request or decoding it as notification. Scores are per reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecodeBenchmark {
+    @Param({"single", "coalesced", "split"})
+    public String delivery;
+
+    private ReplyFrameDecoder decoder;
+    private SampleReplies.ReplayChannel channel;
+    private boolean[] answered;
+
+    @Setup
+    public void setup() {
+        decoder = new ReplyFrameDecoder();
+        channel = new SampleReplies.ReplayChannel(SampleReplies.reads(delivery));
+        answered = new boolean[SampleReplies.PENDING_MSG_IDS.length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SampleReplies.MESSAGES)
+    public void frames(Blackhole blackhole) throws IOException {
+        channel.rewind();
+        while (decoder.readFrom(channel) > 0) {
+            String frame;
+            while ((frame = decoder.nextFrame()) != null)
+                blackhole.consume(frame);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SampleReplies.MESSAGES)
+    public void framesAndParse(Blackhole blackhole) throws IOException {
+        channel.rewind();
+        while (decoder.readFrom(channel) > 0) {
+            String frame;
+            while ((frame = decoder.nextFrame()) != null)
+                blackhole.consume(new JSONObject(frame));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SampleReplies.MESSAGES)
+    public void framesParseAndMatch(Blackhole blackhole) throws IOException {
+        channel.rewind();
+        for (int i = 0; i < answered.length; ++i)
+            answered[i] = false;
+
+        while (decoder.readFrom(channel) > 0) {
+            String frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                JSONObject reply = new JSONObject(frame);
+                if (CameraNotification.isNotification(reply)) {
+                    blackhole.consume(CameraNotification.decode(reply));
+                    continue;
+                }
+
+                ReplyMatcher matcher = new ReplyMatcher(reply);
+                for (int i = 0; i < answered.length; ++i) {
+                    if (answered[i] || !matcher.matches(SampleReplies.PENDING_MSG_IDS[i], SampleReplies.PENDING_TYPES[i]))
+                        continue;
+                    answered[i] = true;
+                    blackhole.consume(i);
+                    break;
+                }
+            }
+        }
+    }
+}
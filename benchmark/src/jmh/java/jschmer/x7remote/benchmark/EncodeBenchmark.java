@@ -0,0 +1,87 @@
+package jschmer.x7remote.benchmark;
+
+import jschmer.x7remote.protocol.CameraCommand;
+import jschmer.x7remote.protocol.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request encoding, the format* benchmarks are the String.format payloads the session used
+ * before the {@link CommandEncoder} for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodeBenchmark {
+    private static final int TOKEN = 12;
+
+    private CommandEncoder encoder;
+
+    @Setup
+    public void setup() {
+        encoder = new CommandEncoder();
+        encoder.setToken(TOKEN);
+    }
+
+    @Benchmark
+    public byte[] formatCommand() {
+        String payload = String.format(
+                Locale.US,
+                "{\"token\":%d,\"msg_id\":%d,\"param_size\":0}",
+                TOKEN,
+                CameraCommand.Keep_Alive.getId()
+        );
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCommand() {
+        return encoder.encodeCommand(CameraCommand.Keep_Alive);
+    }
+
+    @Benchmark
+    public byte[] formatGetSetting() {
+        String payload = String.format(
+                Locale.US,
+                "{\"token\":%d,\"msg_id\":7,\"type\":\"%s\",\"param_size\":0}",
+                TOKEN,
+                "battery_level"
+        );
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGetSetting() {
+        return encoder.encodeGetSetting("battery_level");
+    }
+
+    @Benchmark
+    public byte[] formatSetSetting() {
+        String value = "on";
+        String payload = String.format(
+                Locale.US,
+                "{\"token\":%d,\"msg_id\":6,\"type\":\"%s\",\"param\":\"%s\",\"param_size\":%d}",
+                TOKEN,
+                "dual streams",
+                value,
+                value.length()
+        );
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeSetSetting() {
+        return encoder.encodeSetSetting("dual streams", "on");
+    }
+}
@@ -0,0 +1,65 @@
+package jschmer.x7remote.benchmark;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reply handling of the original blocking session for comparison with
+ * {@link DecodeBenchmark}: every read is converted to a String, split on NUL and each part
+ * parsed until one isn't skipped. It can't handle replies split across reads, so only
+ * whole-frame deliveries are measured. Scores are per reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LegacyDecodeBenchmark {
+    @Param({"single", "coalesced"})
+    public String delivery;
+
+    private byte[][] reads;
+
+    @Setup
+    public void setup() {
+        reads = SampleReplies.reads(delivery);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SampleReplies.MESSAGES)
+    public void splitAndSkip(Blackhole blackhole) {
+        for (byte[] read : reads) {
+            // the old code read into a char[65556] per call and dropped the trailing NUL
+            char[] buf = new char[65556];
+            String data = new String(read, StandardCharsets.UTF_8);
+            data.getChars(0, data.length(), buf, 0);
+            String replyStr = String.valueOf(buf, 0, data.length() - 1);
+
+            List<String> replies = new ArrayList<>(Arrays.asList(replyStr.split("\0")));
+            for (Iterator<String> iterator = replies.iterator(); iterator.hasNext();) {
+                JSONObject reply = new JSONObject(iterator.next());
+                iterator.remove();
+                if (!shouldSkipReply(reply))
+                    blackhole.consume(reply);
+            }
+        }
+    }
+
+    private static boolean shouldSkipReply(JSONObject reply) {
+        return reply.has("msg_id") && reply.get("msg_id").toString().equals("16777217");
+    }
+}
@@ -0,0 +1,105 @@
+package jschmer.x7remote.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reply traffic of a typical keep-alive cycle and the ways it arrives on the socket.
+ */
+class SampleReplies {
+    // used in annotations, so it has to be a constant; must match REPLIES.length
+    static final int MESSAGES = 4;
+
+    static final String[] REPLIES = {
+            "{ \"rval\": -26, \"msg_id\": 64 }",
+            "{ \"rval\": 0, \"param_size\": 2, \"param\": \"40\" }",
+            "{ \"msg_id\": 16777217, \"type\": \"battery\", \"param\": \"3\" }",
+            "{ \"rval\": 0, \"msg_id\": 6, \"type\": \"dual streams\", \"param\": \"on\" }",
+    };
+
+    // requests answered by the replies above, in order: msg_id and type
+    static final int[] PENDING_MSG_IDS = {64, 7, 6};
+    static final String[] PENDING_TYPES = {null, "sd_card_capacity", "dual streams"};
+
+    // chunk size of split replies, smaller than every reply
+    private static final int SPLIT_BYTES = 16;
+
+    /**
+     * @param delivery "single": one reply per read, "coalesced": all replies in one read,
+     *                 "split": replies cut into small reads regardless of frame boundaries
+     * @return the reads the socket returns for the sample replies
+     */
+    static byte[][] reads(String delivery) {
+        byte[][] frames = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; ++i) {
+            byte[] json = REPLIES[i].getBytes(StandardCharsets.UTF_8);
+            frames[i] = Arrays.copyOf(json, json.length + 1);
+        }
+
+        switch (delivery) {
+            case "single":
+                return frames;
+            case "coalesced":
+                return new byte[][] { concat(frames) };
+            case "split":
+                byte[] stream = concat(frames);
+                byte[][] chunks = new byte[(stream.length + SPLIT_BYTES - 1) / SPLIT_BYTES][];
+                for (int i = 0; i < chunks.length; ++i)
+                    chunks[i] = Arrays.copyOfRange(stream, i * SPLIT_BYTES, Math.min(stream.length, (i + 1) * SPLIT_BYTES));
+                return chunks;
+            default:
+                throw new IllegalArgumentException("Unknown delivery: " + delivery);
+        }
+    }
+
+    private static byte[] concat(byte[][] parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Channel replaying the same reads over and over, returns 0 like a drained
+     * non-blocking socket after each pass.
+     */
+    static class ReplayChannel implements ReadableByteChannel {
+        private final byte[][] reads;
+        private int next = 0;
+
+        ReplayChannel(byte[][] reads) {
+            this.reads = reads;
+        }
+
+        void rewind() {
+            next = 0;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (next == reads.length)
+                return 0;
+            byte[] read = reads[next++];
+            dst.put(read);
+            return read.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package jschmer.x7remote.protocol;
+
+public enum BatteryLevel {
+    L0(0),
+    L1(1),
+    L2(2),
+    L3(3),
+    L4(4),
+    AC(5);
+
+    private final int value;
+
+    BatteryLevel(int value) {
+        this.value = value;
+    }
+
+    public static BatteryLevel fromValue(int value) {
+        BatteryLevel[] levels = BatteryLevel.values();
+        for (BatteryLevel level : levels) {
+            if (level.getValue() == value)
+                return level;
+        }
+        throw new ArrayIndexOutOfBoundsException("BatteryLevel does not have value '" + value + "'");
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
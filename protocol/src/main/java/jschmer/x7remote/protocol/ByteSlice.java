@@ -0,0 +1,19 @@
+package jschmer.x7remote.protocol;
+
+/**
+ * A received message or image in array[offset, offset + length).
+ *
+ * The array usually comes from a {@link ReceiveBufferPool} and is larger than the content,
+ * hand it back with {@link ReceiveBufferPool#release(byte[])} once the content was consumed.
+ */
+public class ByteSlice {
+    public final byte[] array;
+    public final int offset;
+    public final int length;
+
+    public ByteSlice(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+}
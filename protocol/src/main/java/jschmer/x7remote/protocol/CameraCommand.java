@@ -0,0 +1,25 @@
+package jschmer.x7remote.protocol;
+
+/**
+ * Requests of the camera TCP API, identified by their msg_id.
+ */
+public enum CameraCommand {
+    Session_Init(1),
+    Session_Close(2),
+    Video_Capture_Start(3),
+    Video_Capture_Stop(4),
+    Take_Picture(5),
+    Set_Setting(6),
+    Get_Setting(7),
+    Remote_Pair(8),
+    Setting_Change_Stop(12),
+    Setting_Change_Start(13),
+    Power_OFF(32),
+    Switch_Mode_Video(33),
+    Switch_Mode_Picture(34),
+    Keep_Alive(64);
+
+    private final int id;
+    CameraCommand(int id) { this.id = id; }
+    public int getId() { return id; }
+}
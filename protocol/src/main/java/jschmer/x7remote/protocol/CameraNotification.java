@@ -0,0 +1,83 @@
+package jschmer.x7remote.protocol;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unsolicited message pushed by the camera, e.g. when recording was started with the
+ * camera's own button.
+ *
+ * TCP RP: {"msg_id":7,"type":"start_video_record"}
+ * TCP RP: {"msg_id":7,"type":"battery","param":"3"}
+ */
+public class CameraNotification {
+    public enum Type {
+        RecordingStarted,
+        RecordingStopped,
+        BatteryChanged,
+        SdCardFull,
+        SwitchedToVideoMode,
+        SwitchedToPhotoMode,
+        SettingChanged,
+        Unknown
+    }
+
+    // msg_id the camera uses for pushed status messages
+    private static final int NOTIFICATION_MSG_ID = 16777217;
+
+    // camera notification type -> decoded type
+    private static final Map<String, Type> typeMap = new HashMap<String, Type>() {{
+        put("start_video_record", Type.RecordingStarted);
+        put("video_record_complete", Type.RecordingStopped);
+        put("stop_video_record", Type.RecordingStopped);
+        put("battery", Type.BatteryChanged);
+        put("battery_level", Type.BatteryChanged);
+        put("adapter", Type.BatteryChanged);
+        put("sd_card_full", Type.SdCardFull);
+        put("card_full", Type.SdCardFull);
+        put("storage_runout", Type.SdCardFull);
+        put("switch_to_rec_mode", Type.SwitchedToVideoMode);
+        put("switch_to_cap_mode", Type.SwitchedToPhotoMode);
+        put("setting_changed", Type.SettingChanged);
+    }};
+
+    public final Type type;
+    // raw camera notification type and parameter, param is empty if the notification has none
+    public final String name;
+    public final String param;
+
+    private CameraNotification(Type type, String name, String param) {
+        this.type = type;
+        this.name = name;
+        this.param = param;
+    }
+
+    /**
+     * Unsolicited messages don't answer a request, so they don't have a return value.
+     */
+    public static boolean isNotification(JSONObject message) {
+        return !message.has("rval") || message.optInt("msg_id") == NOTIFICATION_MSG_ID;
+    }
+
+    public static CameraNotification decode(JSONObject message) {
+        String name = message.optString("type", "");
+        String param = message.optString("param", "");
+
+        Type type = typeMap.get(name);
+        if (type == null)
+            type = Type.Unknown;
+
+        // the power adapter notification doesn't carry a level
+        if (name.equals("adapter"))
+            param = String.valueOf(BatteryLevel.AC.getValue());
+
+        return new CameraNotification(type, name, param);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s=%s)", type, name, param);
+    }
+}
@@ -0,0 +1,140 @@
+package jschmer.x7remote.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes camera TCP API requests into a reused buffer.
+ *
+ * The session token is fixed once the session is initialized, so everything but the
+ * parameter value is rendered to bytes once per token and cached. Encoding a request then
+ * only copies the cached template into the buffer, which is written to the socket as is.
+ * Not thread safe, callers serialize access together with the socket write.
+ */
+public class CommandEncoder {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int token = 0;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    // {"token":%d,"msg_id":%d,"param_size":0}
+    private final Map<CameraCommand, byte[]> commandTemplates = new EnumMap<>(CameraCommand.class);
+    // {"token":%d,"msg_id":7,"type":"%s","param_size":0}
+    private final Map<String, byte[]> getSettingTemplates = new HashMap<>();
+    // {"token":%d,"msg_id":6,"type":"%s","param":"   (value)   ","param_size":%d}
+    private final Map<String, byte[]> setSettingPrefixes = new HashMap<>();
+    private static final byte[] setSettingInfix = "\",\"param_size\":".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Sets the session token and drops all templates rendered for the previous one.
+     */
+    public void setToken(int token) {
+        if (this.token == token)
+            return;
+
+        this.token = token;
+        commandTemplates.clear();
+        getSettingTemplates.clear();
+        setSettingPrefixes.clear();
+    }
+
+    /**
+     * @return buffer holding the encoded request between 0 and its position
+     */
+    public ByteBuffer encodeCommand(CameraCommand command) {
+        byte[] template = commandTemplates.get(command);
+        if (template == null) {
+            template = render("{\"token\":%d,\"msg_id\":%d,\"param_size\":0}", token, command.getId());
+            commandTemplates.put(command, template);
+        }
+        return put(template);
+    }
+
+    public ByteBuffer encodeGetSetting(String key) {
+        // TCP RQ: {"token":12,"msg_id":7,"type":"sd_card_capacity","param_size":0}
+        byte[] template = getSettingTemplates.get(key);
+        if (template == null) {
+            template = render(
+                    "{\"token\":%d,\"msg_id\":%d,\"type\":\"%s\",\"param_size\":0}",
+                    token,
+                    CameraCommand.Get_Setting.getId(),
+                    key
+            );
+            getSettingTemplates.put(key, template);
+        }
+        return put(template);
+    }
+
+    public ByteBuffer encodeSetSetting(String key, String value) {
+        // TCP RQ: {"token":12,"msg_id":6,"type":"dual streams","param":"on","param_size":2}
+        byte[] prefix = setSettingPrefixes.get(key);
+        if (prefix == null) {
+            prefix = render(
+                    "{\"token\":%d,\"msg_id\":%d,\"type\":\"%s\",\"param\":\"",
+                    token,
+                    CameraCommand.Set_Setting.getId(),
+                    key
+            );
+            setSettingPrefixes.put(key, prefix);
+        }
+
+        // worst case: 3 bytes per char, 11 digits for the size and the closing brace
+        buffer.clear();
+        ensureCapacity(prefix.length + value.length() * 3 + setSettingInfix.length + 12);
+        buffer.put(prefix);
+        putString(value);
+        buffer.put(setSettingInfix);
+        putInt(value.length());
+        buffer.put((byte) '}');
+        return buffer;
+    }
+
+    private static byte[] render(String format, Object... args) {
+        return String.format(Locale.US, format, args).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer put(byte[] template) {
+        buffer.clear();
+        ensureCapacity(template.length);
+        buffer.put(template);
+        return buffer;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.capacity() < capacity)
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+    }
+
+    private void putString(String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // setting values are plain ASCII, only allocate for anything else
+                buffer.put(value.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    private void putInt(int value) {
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+
+        int divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+    }
+}
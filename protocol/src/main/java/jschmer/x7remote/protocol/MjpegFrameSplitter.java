@@ -0,0 +1,210 @@
+package jschmer.x7remote.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Incremental splitter for a continuous MJPEG feed.
+ *
+ * A multipart/x-mixed-replace feed is split by its part headers: if a part announces its
+ * Content-Length the image is cut out without looking at it, otherwise the image is
+ * delimited by the JPEG start and end of image markers. A feed without multipart framing
+ * (plain concatenated images) is split by the markers only. Bytes before a start of image
+ * marker, like boundaries and line breaks, are skipped.
+ */
+public class MjpegFrameSplitter {
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+    private static final int MAX_CAPACITY = 8 * 1024 * 1024;
+    private static final byte MARKER = (byte) 0xFF;
+    private static final byte SOI = (byte) 0xD8;
+    private static final byte EOI = (byte) 0xD9;
+
+    private final boolean multipart;
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    // buffer[start, end) holds the received but not yet consumed bytes
+    private int start = 0;
+    private int end = 0;
+    // buffer[start, scanned) is known not to contain what the current state looks for
+    private int scanned = 0;
+
+    // multipart state: the headers of the next part are expected
+    private boolean inPartHeader;
+    // length of the current part's body, -1 if unknown
+    private int partLength = -1;
+    // start of the current image in the buffer, -1 while looking for it
+    private int imageStart = -1;
+
+    /**
+     * @param contentType Content-Type of the feed, decides between multipart and marker
+     *                    splitting
+     */
+    public MjpegFrameSplitter(String contentType) {
+        multipart = contentType.toLowerCase(Locale.US).startsWith("multipart/");
+        inPartHeader = multipart;
+    }
+
+    /**
+     * Appends received bytes.
+     */
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        ensureSpace(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * @return the next complete image or null if no complete image is buffered yet
+     */
+    public byte[] nextFrame() throws IOException {
+        ByteSlice frame = nextFrame(null);
+        return frame != null ? frame.array : null;
+    }
+
+    /**
+     * Like {@link #nextFrame()} but copies the image into a buffer from the pool.
+     *
+     * @param pool buffer source, null allocates a buffer of exactly the image size
+     */
+    public ByteSlice nextFrame(ReceiveBufferPool pool) throws IOException {
+        while (true) {
+            if (inPartHeader) {
+                if (!parsePartHeader())
+                    return null;
+                continue;
+            }
+
+            ByteSlice frame = partLength >= 0 ? cutPart(pool) : cutImage(pool);
+            if (frame == null)
+                return null;
+            inPartHeader = multipart;
+            partLength = -1;
+            if (frame.length > 0)
+                return frame;
+            if (pool != null)
+                pool.release(frame.array);
+        }
+    }
+
+    /**
+     * @return false if the part header isn't complete yet
+     */
+    private boolean parsePartHeader() throws IOException {
+        int headerEnd = -1;
+        for (int i = Math.max(scanned, start + 3); i < end; ++i) {
+            if (buffer[i - 3] == '\r' && buffer[i - 2] == '\n' && buffer[i - 1] == '\r' && buffer[i] == '\n') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            scanned = Math.max(start, end - 3);
+            return false;
+        }
+
+        String[] lines = new String(buffer, start, headerEnd - start, StandardCharsets.ISO_8859_1).split("\r\n");
+        partLength = -1;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || !line.substring(0, colon).trim().equalsIgnoreCase("content-length"))
+                continue;
+            try {
+                partLength = Integer.parseInt(line.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Malformed part header: %s", line));
+            }
+        }
+
+        start = headerEnd;
+        scanned = start;
+        inPartHeader = false;
+        return true;
+    }
+
+    private ByteSlice cutPart(ReceiveBufferPool pool) {
+        if (end - start < partLength)
+            return null;
+
+        ByteSlice frame = copy(start, partLength, pool);
+        consume(start + partLength);
+        return frame;
+    }
+
+    private ByteSlice cutImage(ReceiveBufferPool pool) {
+        if (imageStart < 0) {
+            int soi = findMarker(SOI);
+            if (soi < 0) {
+                // everything but a trailing marker byte can be dropped
+                consume(Math.max(start, end - 1));
+                return null;
+            }
+            imageStart = soi;
+            scanned = soi + 2;
+        }
+
+        int eoi = findMarker(EOI);
+        if (eoi < 0)
+            return null;
+
+        ByteSlice frame = copy(imageStart, eoi + 2 - imageStart, pool);
+        imageStart = -1;
+        consume(eoi + 2);
+        return frame;
+    }
+
+    /**
+     * @return position of the marker in buffer[scanned, end) or -1
+     */
+    private int findMarker(byte type) {
+        for (int i = Math.max(scanned, start); i + 1 < end; ++i) {
+            if (buffer[i] == MARKER && buffer[i + 1] == type)
+                return i;
+        }
+        scanned = Math.max(start, end - 1);
+        return -1;
+    }
+
+    private ByteSlice copy(int from, int length, ReceiveBufferPool pool) {
+        byte[] frame = pool != null ? pool.acquire(length) : new byte[length];
+        System.arraycopy(buffer, from, frame, 0, length);
+        return new ByteSlice(frame, 0, length);
+    }
+
+    private void consume(int position) {
+        start = position;
+        scanned = position;
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+    }
+
+    private void ensureSpace(int length) throws IOException {
+        if (end + length <= buffer.length)
+            return;
+
+        // move the unconsumed bytes to the front, a started image never lies before start
+        int shift = start;
+        if (shift > 0) {
+            System.arraycopy(buffer, shift, buffer, 0, end - shift);
+            end -= shift;
+            start -= shift;
+            scanned -= shift;
+            if (imageStart >= 0)
+                imageStart -= shift;
+        }
+        if (end + length <= buffer.length)
+            return;
+
+        if (end + length > MAX_CAPACITY)
+            throw new IOException(String.format("MJPEG frame exceeds %d bytes", MAX_CAPACITY));
+
+        int capacity = buffer.length;
+        while (capacity < end + length)
+            capacity *= 2;
+        byte[] grown = new byte[Math.min(capacity, MAX_CAPACITY)];
+        System.arraycopy(buffer, 0, grown, 0, end);
+        buffer = grown;
+    }
+}
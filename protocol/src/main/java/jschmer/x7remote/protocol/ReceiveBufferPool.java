@@ -0,0 +1,97 @@
+package jschmer.x7remote.protocol;
+
+import java.util.ArrayDeque;
+
+/**
+ * Receive buffers reused across responses of one kind, like preview frames.
+ *
+ * New buffers are sized from the largest of the recently requested lengths plus some
+ * headroom, so frames that vary a bit in size keep fitting into the pooled buffers and the
+ * steady state doesn't allocate at all. Buffers that became too small for the recent sizes
+ * are dropped on release.
+ */
+public class ReceiveBufferPool {
+    private static final int HISTORY = 8;
+
+    private final int maxPooled;
+
+    // guarded by this
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private final int[] recentLengths = new int[HISTORY];
+    private int recentIndex = 0;
+    private int allocations = 0;
+
+    /**
+     * @param maxPooled number of released buffers kept for reuse
+     */
+    public ReceiveBufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a buffer of at least length bytes
+     */
+    public synchronized byte[] acquire(int length) {
+        recentLengths[recentIndex] = length;
+        recentIndex = (recentIndex + 1) % HISTORY;
+
+        byte[] best = null;
+        for (byte[] buffer : free) {
+            if (buffer.length >= length && (best == null || buffer.length < best.length))
+                best = buffer;
+        }
+        if (best != null) {
+            free.remove(best);
+            return best;
+        }
+
+        ++allocations;
+        int expected = expectedLength();
+        return new byte[Math.max(length, expected + expected / 4)];
+    }
+
+    /**
+     * Hands a buffer back, it must not be used by the caller anymore.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length < expectedLength())
+            return;
+
+        if (free.size() >= maxPooled) {
+            // keep the larger buffers
+            byte[] smallest = buffer;
+            for (byte[] pooled : free) {
+                if (pooled.length < smallest.length)
+                    smallest = pooled;
+            }
+            if (smallest == buffer)
+                return;
+            free.remove(smallest);
+        }
+        free.add(buffer);
+    }
+
+    /**
+     * @return the largest recently requested length
+     */
+    public synchronized int expectedLength() {
+        int max = 0;
+        for (int length : recentLengths)
+            max = Math.max(max, length);
+        return max;
+    }
+
+    /**
+     * @return number of buffers allocated because no pooled one fit
+     */
+    public synchronized int getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public synchronized void clear() {
+        free.clear();
+    }
+}
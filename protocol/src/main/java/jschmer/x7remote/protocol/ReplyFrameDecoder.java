@@ -0,0 +1,98 @@
+package jschmer.x7remote.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder for the camera TCP API replies.
+ *
+ * The camera terminates every JSON reply with a NUL byte, but a single socket read can
+ * return a partial reply or several replies at once. The decoder keeps one receive buffer
+ * that is reused for the whole session, accumulates reads until a frame is complete and
+ * keeps any additional frames buffered for the next call.
+ */
+public class ReplyFrameDecoder {
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_CAPACITY = 1024 * 1024;
+    private static final byte DELIMITER = 0;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    // buffer[start, end) holds the received but not yet consumed bytes
+    private int start = 0;
+    private int end = 0;
+    // buffer[start, scanned) is known not to contain a delimiter
+    private int scanned = 0;
+
+    /**
+     * @return the next complete frame or null if no complete frame is buffered yet
+     */
+    public String nextFrame() {
+        for (int i = scanned; i < end; ++i) {
+            if (buffer[i] != DELIMITER)
+                continue;
+
+            String frame = new String(buffer, start, i - start, StandardCharsets.UTF_8).trim();
+            start = i + 1;
+            scanned = start;
+
+            // ignore empty frames, e.g. stray delimiters or line breaks
+            if (!frame.isEmpty())
+                return frame;
+        }
+        scanned = end;
+
+        if (start == end) {
+            // everything consumed, start over at the beginning of the buffer
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Reads whatever is available from the channel into the receive buffer.
+     *
+     * @return number of bytes read, -1 at the end of the stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        view.limit(buffer.length);
+        view.position(end);
+        int read = channel.read(view);
+        if (read > 0)
+            end += read;
+        return read;
+    }
+
+    public void reset() {
+        start = 0;
+        end = 0;
+        scanned = 0;
+    }
+
+    private void ensureSpace() throws IOException {
+        if (end < buffer.length)
+            return;
+
+        if (start > 0) {
+            // move the partial frame to the front
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+            return;
+        }
+
+        if (buffer.length >= MAX_CAPACITY)
+            throw new IOException(String.format("Reply exceeds %d bytes without delimiter", MAX_CAPACITY));
+
+        byte[] grown = new byte[Math.min(buffer.length * 2, MAX_CAPACITY)];
+        System.arraycopy(buffer, 0, grown, 0, end);
+        buffer = grown;
+        view = ByteBuffer.wrap(buffer);
+    }
+}
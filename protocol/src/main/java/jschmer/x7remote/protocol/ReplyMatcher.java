@@ -0,0 +1,43 @@
+package jschmer.x7remote.protocol;
+
+import org.json.JSONObject;
+
+/**
+ * Decides which pending request a reply answers.
+ *
+ * A reply answers the oldest pending request with the same msg_id (and type, if both have
+ * one). The camera omits msg_id only when answering Get_Setting, so a reply without msg_id
+ * answers the oldest pending Get_Setting with the same type, if the reply has one. Callers
+ * test their pending requests oldest first and take the first match.
+ *
+ * The camera answers requests in order, so requests older than the one a reply answers
+ * won't get a reply anymore.
+ */
+public class ReplyMatcher {
+    public static final int NO_MSG_ID = -1;
+
+    private final int msgId;
+    private final String type;
+
+    /**
+     * Extracts the fields used for matching once per reply.
+     */
+    public ReplyMatcher(JSONObject reply) {
+        msgId = reply.optInt("msg_id", NO_MSG_ID);
+        type = reply.optString("type", null);
+    }
+
+    /**
+     * @param requestMsgId msg_id of the pending request
+     * @param requestType  type of the pending request (setting key) or null
+     */
+    public boolean matches(int requestMsgId, String requestType) {
+        if (msgId == NO_MSG_ID) {
+            if (requestMsgId != CameraCommand.Get_Setting.getId())
+                return false;
+        } else if (requestMsgId != msgId) {
+            return false;
+        }
+        return type == null || requestType == null || type.equals(requestType);
+    }
+}
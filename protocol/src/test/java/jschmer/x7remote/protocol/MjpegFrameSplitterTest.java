@@ -0,0 +1,142 @@
+package jschmer.x7remote.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MjpegFrameSplitterTest {
+    private static final String MULTIPART = "multipart/x-mixed-replace; boundary=x7frame";
+
+    // SOI, some data that contains a lone marker byte, EOI
+    private static final byte[] IMAGE_A = {(byte) 0xFF, (byte) 0xD8, 1, 2, (byte) 0xFF, 3, (byte) 0xFF, (byte) 0xD9};
+    private static final byte[] IMAGE_B = {(byte) 0xFF, (byte) 0xD8, 4, 5, 6, (byte) 0xFF, (byte) 0xD9};
+
+    private static byte[] part(byte[] image, boolean withLength) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        String header = "--x7frame\r\nContent-Type: image/jpeg\r\n";
+        if (withLength)
+            header += "Content-Length: " + image.length + "\r\n";
+        part.write((header + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        part.write(image);
+        part.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        return part.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            joined.write(part);
+        return joined.toByteArray();
+    }
+
+    private static void feed(MjpegFrameSplitter splitter, byte[] data) throws IOException {
+        splitter.feed(data, 0, data.length);
+    }
+
+    @Test
+    public void partsWithLengthAreCutByLength() throws IOException {
+        // an EOI inside the image must not end it early
+        byte[] image = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9, 7, (byte) 0xFF, (byte) 0xD9};
+        MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+        feed(splitter, concat(part(image, true), part(IMAGE_B, true)));
+
+        assertArrayEquals(image, splitter.nextFrame());
+        assertArrayEquals(IMAGE_B, splitter.nextFrame());
+        assertNull(splitter.nextFrame());
+    }
+
+    @Test
+    public void partsWithoutLengthAreCutAtTheMarkers() throws IOException {
+        MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+        feed(splitter, concat(part(IMAGE_A, false), part(IMAGE_B, false)));
+
+        assertArrayEquals(IMAGE_A, splitter.nextFrame());
+        assertArrayEquals(IMAGE_B, splitter.nextFrame());
+        assertNull(splitter.nextFrame());
+    }
+
+    @Test
+    public void feedSplitIntoSingleBytes() throws IOException {
+        for (boolean withLength : new boolean[]{true, false}) {
+            byte[] feed = concat(part(IMAGE_A, withLength), part(IMAGE_B, withLength));
+            MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+
+            int images = 0;
+            for (int i = 0; i < feed.length; ++i) {
+                splitter.feed(feed, i, 1);
+                byte[] frame = splitter.nextFrame();
+                if (frame != null)
+                    assertArrayEquals(images++ == 0 ? IMAGE_A : IMAGE_B, frame);
+            }
+            assertEquals(2, images);
+        }
+    }
+
+    @Test
+    public void markersSplitAcrossFeeds() throws IOException {
+        MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+        byte[] feed = part(IMAGE_A, false);
+        // cut between the two bytes of the EOI marker
+        int cut = feed.length - 3;
+
+        splitter.feed(feed, 0, cut);
+        assertNull(splitter.nextFrame());
+        splitter.feed(feed, cut, feed.length - cut);
+        assertArrayEquals(IMAGE_A, splitter.nextFrame());
+    }
+
+    @Test
+    public void plainImagesAreCutAtTheMarkers() throws IOException {
+        MjpegFrameSplitter splitter = new MjpegFrameSplitter("image/jpeg");
+        // whatever comes before a start of image is skipped
+        feed(splitter, concat(new byte[]{9, 9, (byte) 0xFF}, IMAGE_A, new byte[]{'\r', '\n'}, IMAGE_B));
+
+        assertArrayEquals(IMAGE_A, splitter.nextFrame());
+        assertArrayEquals(IMAGE_B, splitter.nextFrame());
+        assertNull(splitter.nextFrame());
+    }
+
+    @Test
+    public void imagesLargerThanTheBufferGrowIt() throws IOException {
+        byte[] image = new byte[600 * 1024];
+        image[0] = (byte) 0xFF;
+        image[1] = (byte) 0xD8;
+        image[image.length - 2] = (byte) 0xFF;
+        image[image.length - 1] = (byte) 0xD9;
+
+        for (boolean withLength : new boolean[]{true, false}) {
+            byte[] feed = concat(part(image, withLength), part(IMAGE_B, withLength));
+            MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+            int chunk = 64 * 1024;
+            byte[] first = null;
+            for (int i = 0; i < feed.length && first == null; i += chunk) {
+                splitter.feed(feed, i, Math.min(chunk, feed.length - i));
+                first = splitter.nextFrame();
+            }
+            assertArrayEquals(image, first);
+        }
+    }
+
+    @Test
+    public void framesGoIntoPooledBuffers() throws IOException {
+        ReceiveBufferPool pool = new ReceiveBufferPool(2);
+        byte[] pooled = pool.acquire(IMAGE_A.length);
+        pool.release(pooled);
+
+        MjpegFrameSplitter splitter = new MjpegFrameSplitter(MULTIPART);
+        feed(splitter, part(IMAGE_A, true));
+        ByteSlice frame = splitter.nextFrame(pool);
+
+        assertSame(pooled, frame.array);
+        assertEquals(IMAGE_A.length, frame.length);
+        assertArrayEquals(IMAGE_A, Arrays.copyOfRange(frame.array, frame.offset, frame.offset + frame.length));
+    }
+}
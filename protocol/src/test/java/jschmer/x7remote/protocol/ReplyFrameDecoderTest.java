@@ -0,0 +1,178 @@
+package jschmer.x7remote.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReplyFrameDecoderTest {
+    private static final String KEEP_ALIVE = "{\"rval\":-26,\"msg_id\":64}";
+    private static final String SETTING = "{\"rval\":0,\"param_size\":2,\"param\":\"40\"}";
+
+    /**
+     * Returns one chunk per read, like a socket that received the chunks one at a time.
+     */
+    private static class ChunkChannel implements ReadableByteChannel {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+
+        ChunkChannel(byte[]... chunks) {
+            this.chunks.addAll(Arrays.asList(chunks));
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            byte[] chunk = chunks.poll();
+            if (chunk == null)
+                return -1;
+            if (chunk.length > dst.remaining()) {
+                // the rest is returned by the next read
+                chunks.push(Arrays.copyOfRange(chunk, dst.remaining(), chunk.length));
+                chunk = Arrays.copyOf(chunk, dst.remaining());
+            }
+            dst.put(chunk);
+            return chunk.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] frame(String reply) {
+        byte[] json = reply.getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(json, json.length + 1);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] joined = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, position, part.length);
+            position += part.length;
+        }
+        return joined;
+    }
+
+    @Test
+    public void singleReply() throws IOException {
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        ChunkChannel channel = new ChunkChannel(frame(KEEP_ALIVE));
+
+        assertNull(decoder.nextFrame());
+        decoder.readFrom(channel);
+        assertEquals(KEEP_ALIVE, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void coalescedRepliesAreReturnedOneByOne() throws IOException {
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        decoder.readFrom(new ChunkChannel(concat(frame(KEEP_ALIVE), frame(SETTING), frame(KEEP_ALIVE))));
+
+        assertEquals(KEEP_ALIVE, decoder.nextFrame());
+        assertEquals(SETTING, decoder.nextFrame());
+        assertEquals(KEEP_ALIVE, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void splitReplyIsReturnedOnceComplete() throws IOException {
+        byte[] reply = frame(SETTING);
+        byte[][] bytes = new byte[reply.length][];
+        for (int i = 0; i < reply.length; ++i)
+            bytes[i] = new byte[]{reply[i]};
+
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        ChunkChannel channel = new ChunkChannel(bytes);
+        for (int i = 0; i < reply.length - 1; ++i) {
+            decoder.readFrom(channel);
+            assertNull(decoder.nextFrame());
+        }
+        decoder.readFrom(channel);
+        assertEquals(SETTING, decoder.nextFrame());
+    }
+
+    @Test
+    public void readsCutAcrossReplyBoundaries() throws IOException {
+        byte[] replies = concat(frame(KEEP_ALIVE), frame(SETTING));
+        int cut = KEEP_ALIVE.length() + 5;
+
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        ChunkChannel channel = new ChunkChannel(
+                Arrays.copyOfRange(replies, 0, cut),
+                Arrays.copyOfRange(replies, cut, replies.length)
+        );
+
+        decoder.readFrom(channel);
+        assertEquals(KEEP_ALIVE, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+        decoder.readFrom(channel);
+        assertEquals(SETTING, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void strayDelimitersAndLineBreaksAreSkipped() throws IOException {
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        decoder.readFrom(new ChunkChannel(concat(new byte[]{0, '\n', 0}, frame(KEEP_ALIVE))));
+
+        assertEquals(KEEP_ALIVE, decoder.nextFrame());
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void partialReplyKeepsItsBytesWhenTheBufferFills() throws IOException {
+        // enough complete replies to fill the receive buffer, the last one is cut in half
+        byte[] reply = frame(SETTING);
+        int count = 64 * 1024 / reply.length + 1;
+        byte[][] replies = new byte[count][];
+        Arrays.fill(replies, reply);
+        byte[] all = concat(replies);
+        int cut = all.length - reply.length / 2;
+
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        ChunkChannel channel = new ChunkChannel(
+                Arrays.copyOfRange(all, 0, cut),
+                Arrays.copyOfRange(all, cut, all.length)
+        );
+
+        int decoded = 0;
+        while (decoder.readFrom(channel) > 0) {
+            String frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                assertEquals(SETTING, frame);
+                ++decoded;
+            }
+        }
+        assertEquals(count, decoded);
+    }
+
+    @Test
+    public void replyLargerThanTheBufferGrowsIt() throws IOException {
+        char[] value = new char[100 * 1024];
+        Arrays.fill(value, 'x');
+        String large = "{\"rval\":0,\"msg_id\":7,\"param\":\"" + new String(value) + "\"}";
+
+        ReplyFrameDecoder decoder = new ReplyFrameDecoder();
+        ChunkChannel channel = new ChunkChannel(frame(large));
+        String frame = null;
+        while (frame == null && decoder.readFrom(channel) > 0)
+            frame = decoder.nextFrame();
+        assertEquals(large, frame);
+    }
+}
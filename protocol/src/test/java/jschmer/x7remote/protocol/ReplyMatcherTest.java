@@ -0,0 +1,68 @@
+package jschmer.x7remote.protocol;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyMatcherTest {
+    private static final int GET_SETTING = CameraCommand.Get_Setting.getId();
+    private static final int SET_SETTING = CameraCommand.Set_Setting.getId();
+    private static final int KEEP_ALIVE = CameraCommand.Keep_Alive.getId();
+
+    private static ReplyMatcher matcher(String reply) {
+        return new ReplyMatcher(new JSONObject(reply));
+    }
+
+    @Test
+    public void matchesRequestWithTheSameMsgId() {
+        ReplyMatcher matcher = matcher("{\"rval\":-26,\"msg_id\":64}");
+
+        assertTrue(matcher.matches(KEEP_ALIVE, null));
+        assertFalse(matcher.matches(CameraCommand.Remote_Pair.getId(), null));
+    }
+
+    @Test
+    public void typeMustAgreeIfBothHaveOne() {
+        ReplyMatcher matcher = matcher("{\"rval\":0,\"msg_id\":6,\"type\":\"dual streams\",\"param\":\"on\"}");
+
+        assertTrue(matcher.matches(SET_SETTING, "dual streams"));
+        assertTrue(matcher.matches(SET_SETTING, null));
+        assertFalse(matcher.matches(SET_SETTING, "stream type"));
+    }
+
+    @Test
+    public void replyWithoutTypeMatchesAnyType() {
+        ReplyMatcher matcher = matcher("{\"rval\":-14,\"msg_id\":6}");
+
+        assertTrue(matcher.matches(SET_SETTING, "video_resolution"));
+    }
+
+    @Test
+    public void replyWithoutMsgIdOnlyAnswersGetSetting() {
+        // TCP RP: { "rval": 0, "param_size": 2, "param": "40" }
+        ReplyMatcher matcher = matcher("{\"rval\":0,\"param_size\":2,\"param\":\"40\"}");
+
+        assertTrue(matcher.matches(GET_SETTING, "sd_card_capacity"));
+        assertFalse(matcher.matches(KEEP_ALIVE, null));
+        assertFalse(matcher.matches(SET_SETTING, "sd_card_capacity"));
+        assertFalse(matcher.matches(CameraCommand.Session_Init.getId(), null));
+    }
+
+    @Test
+    public void replyWithoutMsgIdChecksTheType() {
+        ReplyMatcher matcher = matcher("{\"rval\":0,\"type\":\"battery_level\",\"param\":\"3\"}");
+
+        assertTrue(matcher.matches(GET_SETTING, "battery_level"));
+        assertFalse(matcher.matches(GET_SETTING, "sd_card_capacity"));
+    }
+
+    @Test
+    public void failedGetSettingWithoutMsgIdStillAnswersIt() {
+        ReplyMatcher matcher = matcher("{\"rval\":-14}");
+
+        assertTrue(matcher.matches(GET_SETTING, "unknown_setting"));
+        assertFalse(matcher.matches(KEEP_ALIVE, null));
+    }
+}
@@ -0,0 +1,101 @@
+package jschmer.x7remote.simulator;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings and status of the simulated camera, shared by the TCP and HTTP side.
+ */
+class CameraState {
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    private int nextToken = 1;
+    private boolean recording = false;
+    private boolean dualStreams;
+    private int batteryLevel = 4;
+
+    CameraState(SimulatorConfig config) {
+        dualStreams = config.dualStreamsOn;
+
+        // every setting the app maps to a preference, values are valid indices of its lists
+        settings.put("video_option", "0");
+        settings.put("video_resolution", "0");
+        settings.put("video_quality", "0");
+        settings.put("auto_rec", "0");
+        settings.put("photo_option", "0");
+        settings.put("photo_size", "0");
+        settings.put("photo_quality", "0");
+        settings.put("time_stamp", "0");
+        settings.put("aqua_mode", "0");
+        settings.put("fov", "0");
+        settings.put("ae_metering", "0");
+        settings.put("vout", "0");
+        settings.put("mic", "2");
+        settings.put("buzzer", "1");
+        settings.put("led", "1");
+        settings.put("auto_lcd_off", "0");
+        settings.put("auto_power_off", "0");
+
+        // read-only status values
+        settings.put("sd_card_capacity", "73");
+        settings.put("stream type", "h264");
+    }
+
+    synchronized int newSession() {
+        return nextToken++;
+    }
+
+    synchronized String getSetting(String key) {
+        if (key.equals("battery_level"))
+            return String.valueOf(batteryLevel);
+        return settings.get(key);
+    }
+
+    synchronized boolean setSetting(String key, String value) {
+        if (!settings.containsKey(key))
+            return false;
+        settings.put(key, value);
+        return true;
+    }
+
+    /**
+     * @return true if dual streams were already on
+     */
+    synchronized boolean enableDualStreams() {
+        boolean wasOn = dualStreams;
+        dualStreams = true;
+        return wasOn;
+    }
+
+    synchronized boolean isDualStreamsOn() {
+        return dualStreams;
+    }
+
+    synchronized boolean isRecording() {
+        return recording;
+    }
+
+    synchronized void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    synchronized int nextBatteryLevel() {
+        batteryLevel = batteryLevel == 0 ? 4 : batteryLevel - 1;
+        return batteryLevel;
+    }
+
+    /**
+     * Content of /pref/config.
+     */
+    synchronized JSONObject toConfig() {
+        JSONObject config = new JSONObject();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            config.put(setting.getKey(), setting.getValue());
+        }
+        config.put("dual streams", dualStreams ? "on" : "off");
+        config.put("serial_number", "X7SIM0001");
+        config.put("recording_status", recording ? 1 : 0);
+        return config;
+    }
+}
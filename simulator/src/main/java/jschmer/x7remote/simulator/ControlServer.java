@@ -0,0 +1,320 @@
+package jschmer.x7remote.simulator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * TCP JSON API of the simulated camera.
+ *
+ * Requests arrive as plain concatenated JSON objects, replies and notifications are sent
+ * as JSON terminated by a NUL byte, just like the camera does.
+ */
+class ControlServer implements AutoCloseable {
+    // camera error codes
+    private static final int RVAL_OK = 0;
+    private static final int RVAL_SESSION_START_FAIL = -3;
+    private static final int RVAL_INVALID_TOKEN = -4;
+    private static final int RVAL_UNKNOWN_COMMAND = -9;
+    private static final int RVAL_INVALID_SETTING = -14;
+    private static final int RVAL_KEEP_ALIVE = -26;
+
+    private final SimulatorConfig config;
+    private final CameraState state;
+    private final ServerSocket server;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final long startedAt = System.nanoTime();
+    private volatile boolean running = true;
+
+    ControlServer(SimulatorConfig config, CameraState state) throws IOException {
+        this.config = config;
+        this.state = state;
+        server = new ServerSocket(config.controlPort);
+
+        Thread acceptor = new Thread(this::acceptLoop, "simulator-control");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Pushes an unsolicited message to all connected clients.
+     */
+    void broadcast(JSONObject notification) {
+        for (Client client : clients) {
+            try {
+                client.write(notification);
+            } catch (IOException e) {
+                client.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                clients.add(client);
+
+                Thread thread = new Thread(client, "simulator-client-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running)
+                    log("Accept failed: " + e);
+            }
+        }
+    }
+
+    private void log(String message) {
+        if (!config.quiet)
+            System.out.println("[control] " + message);
+    }
+
+    private class Client implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final RequestParser parser = new RequestParser();
+        // replies held back while coalescing
+        private final List<JSONObject> held = new ArrayList<>();
+        private int token = 0;
+        private int requests = 0;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            log("Client connected: " + socket.getRemoteSocketAddress());
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[4096];
+                int read;
+                while ((read = in.read(buf)) >= 0) {
+                    parser.feed(buf, read);
+
+                    String request;
+                    while ((request = parser.next()) != null) {
+                        if (!handle(request))
+                            return;
+                    }
+                    flushHeld();
+                }
+            } catch (IOException | JSONException e) {
+                if (running && !socket.isClosed())
+                    log("Client failed: " + e);
+            } finally {
+                close();
+                log("Client disconnected: " + socket.getRemoteSocketAddress());
+            }
+        }
+
+        /**
+         * @return false if the connection is to be closed
+         */
+        private boolean handle(String requestStr) throws IOException {
+            log("RQ: " + requestStr);
+            JSONObject request = new JSONObject(requestStr);
+            int msgId = request.getInt("msg_id");
+
+            ++requests;
+            if (config.disconnectAfterRequests > 0 && requests > config.disconnectAfterRequests) {
+                log("Dropping connection after " + config.disconnectAfterRequests + " requests");
+                return false;
+            }
+
+            if (config.replyLatencyMs > 0)
+                sleep(config.replyLatencyMs);
+
+            if (msgId != 1 && request.optInt("token") != token) {
+                reply(rval(msgId, RVAL_INVALID_TOKEN));
+                return true;
+            }
+
+            switch (msgId) {
+                case 1: // Session_Init
+                    if (System.nanoTime() - startedAt < config.rejectSessionsMs * 1_000_000L) {
+                        log("Still booting, rejecting the session");
+                        reply(rval(msgId, RVAL_SESSION_START_FAIL));
+                        break;
+                    }
+                    token = state.newSession();
+                    reply(rval(msgId, RVAL_OK).put("param", new JSONArray().put(token)));
+                    break;
+                case 2: // Session_Close
+                    reply(rval(msgId, RVAL_OK));
+                    break;
+                case 3: // Video_Capture_Start
+                    state.setRecording(true);
+                    reply(rval(msgId, RVAL_OK));
+                    broadcast(notification("start_video_record"));
+                    break;
+                case 4: // Video_Capture_Stop
+                    state.setRecording(false);
+                    reply(rval(msgId, RVAL_OK));
+                    broadcast(notification("video_record_complete"));
+                    break;
+                case 5: // Take_Picture
+                case 8: // Remote_Pair
+                case 12: // Setting_Change_Stop
+                case 13: // Setting_Change_Start
+                    reply(rval(msgId, RVAL_OK));
+                    break;
+                case 6: // Set_Setting
+                    reply(setSetting(request));
+                    break;
+                case 7: // Get_Setting
+                    reply(getSetting(request));
+                    break;
+                case 32: // Power_OFF
+                    log("Powering off");
+                    return false;
+                case 33: // Switch_Mode_Video
+                    reply(rval(msgId, RVAL_OK));
+                    broadcast(notification("switch_to_rec_mode"));
+                    break;
+                case 34: // Switch_Mode_Picture
+                    reply(rval(msgId, RVAL_OK));
+                    broadcast(notification("switch_to_cap_mode"));
+                    break;
+                case 64: // Keep_Alive
+                    reply(rval(msgId, RVAL_KEEP_ALIVE));
+                    break;
+                default:
+                    reply(rval(msgId, RVAL_UNKNOWN_COMMAND));
+            }
+            return true;
+        }
+
+        private JSONObject setSetting(JSONObject request) {
+            String type = request.getString("type");
+            String param = request.getString("param");
+
+            if (type.equals("dual streams")) {
+                // the camera reports the settable values if the stream is already on
+                JSONObject reply = rval(6, RVAL_OK).put("type", type).put("param", param);
+                if (state.enableDualStreams())
+                    reply.put("settable", "on;streaming;off");
+                return reply;
+            }
+
+            if (!state.setSetting(type, param))
+                return rval(6, RVAL_INVALID_SETTING).put("type", type);
+            return rval(6, RVAL_OK).put("type", type).put("param", param);
+        }
+
+        private JSONObject getSetting(JSONObject request) {
+            // TCP RP: { "rval": 0, "param_size": 2, "param": "40" }, the camera omits msg_id here
+            String value = state.getSetting(request.getString("type"));
+            if (value == null)
+                return new JSONObject().put("rval", RVAL_INVALID_SETTING);
+            return new JSONObject()
+                    .put("rval", RVAL_OK)
+                    .put("param_size", value.length())
+                    .put("param", value);
+        }
+
+        private void reply(JSONObject reply) throws IOException {
+            if (config.coalesceReplies) {
+                held.add(reply);
+            } else {
+                write(reply);
+            }
+        }
+
+        private void flushHeld() throws IOException {
+            if (held.isEmpty())
+                return;
+
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (JSONObject reply : held) {
+                log("RP: " + reply);
+                frames.write(frame(reply));
+            }
+            held.clear();
+            writeRaw(frames.toByteArray());
+        }
+
+        void write(JSONObject message) throws IOException {
+            log("RP: " + message);
+            writeRaw(frame(message));
+        }
+
+        private synchronized void writeRaw(byte[] data) throws IOException {
+            if (config.splitReplyBytes <= 0) {
+                out.write(data);
+                out.flush();
+                return;
+            }
+
+            for (int offset = 0; offset < data.length; offset += config.splitReplyBytes) {
+                out.write(data, offset, Math.min(config.splitReplyBytes, data.length - offset));
+                out.flush();
+                // give the reader a chance to see the partial reply
+                sleep(2);
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static JSONObject notification(String type) {
+        return new JSONObject().put("msg_id", 7).put("type", type);
+    }
+
+    private static JSONObject rval(int msgId, int rval) {
+        return new JSONObject().put("rval", rval).put("msg_id", msgId);
+    }
+
+    private static byte[] frame(JSONObject message) {
+        byte[] json = message.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] framed = new byte[json.length + 1];
+        System.arraycopy(json, 0, framed, 0, json.length);
+        framed[json.length] = 0;
+        return framed;
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package jschmer.x7remote.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * HTTP side of the simulated camera: /pref/config and the preview image.
+ *
+ * Preview frames are rendered once at startup and served in turn, so serving them costs
+ * about as much as on the camera and doesn't distort measurements on the app side. With
+ * {@link SimulatorConfig#mjpegStreamFps} set the preview is a multipart/x-mixed-replace
+ * stream instead of a single image per request.
+ */
+class PreviewServer implements AutoCloseable {
+    private static final int FRAME_COUNT = 30;
+    private static final String BOUNDARY = "x7frame";
+
+    static {
+        // the JDK server writes headers and body separately, with Nagle's algorithm every
+        // response on a keep-alive connection would wait for the client's delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final SimulatorConfig config;
+    private final CameraState state;
+    private final HttpServer server;
+    private final byte[][] frames;
+    private final AtomicInteger nextFrame = new AtomicInteger();
+    private final AtomicInteger streamsOpened = new AtomicInteger();
+
+    PreviewServer(SimulatorConfig config, CameraState state) throws IOException {
+        this.config = config;
+        this.state = state;
+        this.frames = renderFrames(config.previewWidth, config.previewHeight);
+
+        server = HttpServer.create(new InetSocketAddress(config.httpPort), 0);
+        server.createContext("/pref/config", this::handleConfig);
+        server.createContext("/mjpeg/amba.jpg", this::handlePreview);
+        server.setExecutor(Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "simulator-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    int getStreamsOpened() {
+        return streamsOpened.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handleConfig(HttpExchange exchange) throws IOException {
+        byte[] body = state.toConfig().toString().getBytes(StandardCharsets.UTF_8);
+        respond(exchange, "application/json", body);
+    }
+
+    private void handlePreview(HttpExchange exchange) throws IOException {
+        // the camera only serves the preview while the secondary stream is running
+        if (!state.isDualStreamsOn()) {
+            delay();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        if (config.mjpegStreamFps > 0) {
+            stream(exchange);
+            return;
+        }
+
+        int frame = Math.floorMod(nextFrame.getAndIncrement(), frames.length);
+        respond(exchange, "image/jpeg", frames[frame]);
+    }
+
+    /**
+     * Writes frames until the client disconnects, the secondary stream is stopped or the
+     * stream is broken off on purpose.
+     */
+    private void stream(HttpExchange exchange) throws IOException {
+        delay();
+        exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+        exchange.sendResponseHeaders(200, 0);
+        streamsOpened.incrementAndGet();
+
+        long intervalNs = 1_000_000_000L / config.mjpegStreamFps;
+        long next = System.nanoTime();
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int written = 0; state.isDualStreamsOn(); ++written) {
+                if (config.mjpegStreamBreakAfter > 0 && written >= config.mjpegStreamBreakAfter) {
+                    // the client sees the connection go away in the middle of the stream
+                    exchange.close();
+                    return;
+                }
+
+                byte[] frame = frames[Math.floorMod(nextFrame.getAndIncrement(), frames.length)];
+                StringBuilder partHeader = new StringBuilder("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n");
+                if (!config.mjpegStreamNoLength)
+                    partHeader.append("Content-Length: ").append(frame.length).append("\r\n");
+                partHeader.append("\r\n");
+
+                out.write(partHeader.toString().getBytes(StandardCharsets.US_ASCII));
+                out.write(frame);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                next += intervalNs;
+                long sleepMs = (next - System.nanoTime()) / 1_000_000;
+                if (sleepMs > 0)
+                    Thread.sleep(sleepMs);
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        delay();
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void delay() {
+        if (config.httpLatencyMs <= 0)
+            return;
+        try {
+            Thread.sleep(config.httpLatencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Renders a bar moving across the image and the frame number, so dropped or repeated
+     * frames are visible in the app.
+     */
+    private static byte[][] renderFrames(int width, int height) throws IOException {
+        byte[][] frames = new byte[FRAME_COUNT][];
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setFont(new Font(Font.MONOSPACED, Font.BOLD, Math.max(12, height / 8)));
+
+        for (int i = 0; i < FRAME_COUNT; ++i) {
+            graphics.setColor(Color.DARK_GRAY);
+            graphics.fillRect(0, 0, width, height);
+
+            int barWidth = Math.max(1, width / 10);
+            graphics.setColor(Color.ORANGE);
+            graphics.fillRect(i * (width - barWidth) / (FRAME_COUNT - 1), 0, barWidth, height);
+
+            graphics.setColor(Color.WHITE);
+            graphics.drawString(String.format("X7 %02d", i), width / 20, height - height / 10);
+
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", jpeg);
+            frames[i] = jpeg.toByteArray();
+        }
+        graphics.dispose();
+        return frames;
+    }
+}
@@ -0,0 +1,62 @@
+package jschmer.x7remote.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the request stream into JSON objects.
+ *
+ * The app sends requests without any delimiter, so objects are cut at the closing brace
+ * of the top level object. Braces inside strings are skipped, NUL bytes and whitespace
+ * between objects are ignored.
+ */
+class RequestParser {
+    private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+    private byte[] input = new byte[0];
+    private int inputPos = 0;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+
+    void feed(byte[] data, int length) {
+        byte[] merged = new byte[input.length - inputPos + length];
+        System.arraycopy(input, inputPos, merged, 0, input.length - inputPos);
+        System.arraycopy(data, 0, merged, input.length - inputPos, length);
+        input = merged;
+        inputPos = 0;
+    }
+
+    /**
+     * @return the next complete request or null if more data is needed
+     */
+    String next() {
+        while (inputPos < input.length) {
+            byte b = input[inputPos++];
+
+            if (depth == 0 && b != '{')
+                continue;
+            current.write(b);
+
+            if (inString) {
+                if (escaped)
+                    escaped = false;
+                else if (b == '\\')
+                    escaped = true;
+                else if (b == '"')
+                    inString = false;
+                continue;
+            }
+
+            if (b == '"') {
+                inString = true;
+            } else if (b == '{') {
+                ++depth;
+            } else if (b == '}' && --depth == 0) {
+                String request = new String(current.toByteArray(), StandardCharsets.UTF_8);
+                current.reset();
+                return request;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,129 @@
+package jschmer.x7remote.simulator;
+
+import java.util.Locale;
+
+/**
+ * Ports and fault injection settings of the simulator.
+ */
+public class SimulatorConfig {
+    // TCP JSON API port, the camera uses 7878
+    public int controlPort = 7878;
+    // HTTP port for /pref/config and the preview, the camera uses 80
+    public int httpPort = 8080;
+
+    // delay before every TCP reply
+    public int replyLatencyMs = 0;
+    // delay before every HTTP response
+    public int httpLatencyMs = 0;
+    // send all replies to requests that arrived together in a single write
+    public boolean coalesceReplies = false;
+    // split every reply into writes of this many bytes, 0 disables splitting
+    public int splitReplyBytes = 0;
+    // close the control connection after this many requests, 0 disables it
+    public int disconnectAfterRequests = 0;
+    // reject Session_Init for this long after start, like a camera that is still booting
+    public int rejectSessionsMs = 0;
+    // push a battery notification in this interval, 0 disables it
+    public int batteryNotificationIntervalMs = 0;
+    // answer the first dual streams request as if dual streams were already on
+    public boolean dualStreamsOn = false;
+    // preview image size
+    public int previewWidth = 640;
+    public int previewHeight = 360;
+    // serve the preview as continuous multipart MJPEG at this rate, 0 serves single images
+    public int mjpegStreamFps = 0;
+    // leave out the Content-Length of the stream's parts
+    public boolean mjpegStreamNoLength = false;
+    // end each stream after this many frames, like a flaky link, 0 disables it
+    public int mjpegStreamBreakAfter = 0;
+    // don't log connections, requests and replies, e.g. in benchmarks
+    public boolean quiet = false;
+
+    static SimulatorConfig parse(String[] args) {
+        SimulatorConfig config = new SimulatorConfig();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            switch (arg) {
+                case "--port":
+                    config.controlPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--http-port":
+                    config.httpPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--latency":
+                    config.replyLatencyMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--http-latency":
+                    config.httpLatencyMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--coalesce":
+                    config.coalesceReplies = true;
+                    break;
+                case "--split":
+                    config.splitReplyBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--disconnect-after":
+                    config.disconnectAfterRequests = Integer.parseInt(args[++i]);
+                    break;
+                case "--reject-sessions":
+                    config.rejectSessionsMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--battery-interval":
+                    config.batteryNotificationIntervalMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--dual-streams-on":
+                    config.dualStreamsOn = true;
+                    break;
+                case "--preview-size":
+                    String[] size = args[++i].split("x");
+                    config.previewWidth = Integer.parseInt(size[0]);
+                    config.previewHeight = Integer.parseInt(size[1]);
+                    break;
+                case "--mjpeg-stream":
+                    config.mjpegStreamFps = Integer.parseInt(args[++i]);
+                    break;
+                case "--mjpeg-no-length":
+                    config.mjpegStreamNoLength = true;
+                    break;
+                case "--mjpeg-break-after":
+                    config.mjpegStreamBreakAfter = Integer.parseInt(args[++i]);
+                    break;
+                case "--quiet":
+                    config.quiet = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return config;
+    }
+
+    static String usage() {
+        return "Usage: X7Simulator [options]\n" +
+                "  --help                      show this help\n" +
+                "  --port <port>               TCP JSON API port (default 7878)\n" +
+                "  --http-port <port>          HTTP port (default 8080)\n" +
+                "  --latency <ms>              delay before every TCP reply\n" +
+                "  --http-latency <ms>         delay before every HTTP response\n" +
+                "  --coalesce                  send replies to pipelined requests in one write\n" +
+                "  --split <bytes>             split every reply into writes of this size\n" +
+                "  --disconnect-after <n>      drop the control connection after n requests\n" +
+                "  --reject-sessions <ms>      reject Session_Init for this long after start\n" +
+                "  --battery-interval <ms>     push battery notifications\n" +
+                "  --dual-streams-on           start with dual streams already enabled\n" +
+                "  --preview-size <w>x<h>      preview image size (default 640x360)\n" +
+                "  --mjpeg-stream <fps>        serve the preview as a continuous MJPEG stream\n" +
+                "  --mjpeg-no-length           leave out the Content-Length of stream parts\n" +
+                "  --mjpeg-break-after <n>     end each stream after n frames\n" +
+                "  --quiet                     don't log requests and replies\n";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "control port %d, http port %d, latency %d/%d ms, coalesce %b, split %d, disconnect after %d",
+                controlPort, httpPort, replyLatencyMs, httpLatencyMs, coalesceReplies, splitReplyBytes, disconnectAfterRequests
+        );
+    }
+}
@@ -0,0 +1,101 @@
+package jschmer.x7remote.simulator;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the X7 camera, speaks its TCP JSON API and serves /pref/config and
+ * the preview image over HTTP.
+ *
+ * Run it standalone with {@code gradlew :simulator:run --args="..."} or embed it in tests
+ * and benchmarks; see {@link SimulatorConfig} for the fault injection options.
+ */
+public class X7Simulator implements AutoCloseable {
+    private final CameraState state;
+    private final ControlServer control;
+    private final PreviewServer preview;
+    private final ScheduledExecutorService notifier;
+
+    public X7Simulator(SimulatorConfig config) throws IOException {
+        state = new CameraState(config);
+        control = new ControlServer(config, state);
+        try {
+            preview = new PreviewServer(config, state);
+        } catch (IOException e) {
+            control.close();
+            throw e;
+        }
+
+        notifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulator-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.batteryNotificationIntervalMs > 0) {
+            notifier.scheduleAtFixedRate(
+                    this::notifyBattery,
+                    config.batteryNotificationIntervalMs,
+                    config.batteryNotificationIntervalMs,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    public int getControlPort() {
+        return control.getPort();
+    }
+
+    public int getHttpPort() {
+        return preview.getPort();
+    }
+
+    /**
+     * @return number of MJPEG streams served so far
+     */
+    public int getPreviewStreamsOpened() {
+        return preview.getStreamsOpened();
+    }
+
+    /**
+     * Pushes an unsolicited notification like {@code start_video_record} to all clients.
+     */
+    public void pushNotification(String type) {
+        control.broadcast(ControlServer.notification(type));
+    }
+
+    @Override
+    public void close() {
+        notifier.shutdownNow();
+        control.close();
+        preview.close();
+    }
+
+    private void notifyBattery() {
+        control.broadcast(ControlServer.notification("battery").put("param", String.valueOf(state.nextBatteryLevel())));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--help")) {
+            System.out.print(SimulatorConfig.usage());
+            return;
+        }
+
+        SimulatorConfig config;
+        try {
+            config = SimulatorConfig.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.print(SimulatorConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        try (X7Simulator simulator = new X7Simulator(config)) {
+            System.out.println("X7 simulator running: " + config);
+            Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+            Thread.currentThread().join();
+        }
+    }
+}